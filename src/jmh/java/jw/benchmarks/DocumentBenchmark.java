@@ -0,0 +1,71 @@
+package jw.benchmarks;
+
+import com.google.common.io.Files;
+import jw.scrapers.ReadComicOnlineTo;
+import jw.util.DownloadUtil;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a saved chapter page, or a generated one of similar shape when
+ * {@code page} is empty, e.g. {@code -p page=chapter.html}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DocumentBenchmark {
+
+    @Param({""})
+    public String page;
+
+    private String html;
+    private URL url;
+
+    @Setup
+    public void setup() throws IOException {
+        url = new URL("http://readcomiconline.to/Comic/Name/Issue-1?id=1");
+        html = page.isEmpty() ? generatePage(40) : Files.asCharSource(new File(page), StandardCharsets.UTF_8).read();
+    }
+
+    private static String generatePage(int images) {
+        StringBuilder sb = new StringBuilder("<!DOCTYPE html><html><head><title>Issue #1</title>");
+        for (int i = 0; i < 20; i++)
+            sb.append("<link rel=\"stylesheet\" href=\"/Content/css").append(i).append(".css\">");
+        sb.append("</head><body><div id=\"container\"><div class=\"barContent\">");
+        for (int i = 0; i < 200; i++)
+            sb.append("<div class=\"item\"><a href=\"/Comic/Name/Issue-").append(i).append("?id=").append(i)
+                    .append("\">Issue #").append(i).append("</a></div>");
+        sb.append("</div><div id=\"divImage\"></div><script type=\"text/javascript\">var lstImages = new Array();");
+        for (int i = 0; i < images; i++)
+            sb.append("lstImages.push(\"https://2.bp.blogspot.com/image").append(i).append("/s0/RCO").append(i)
+                    .append(".jpg\");");
+        sb.append("</script></div></body></html>");
+        return sb.toString();
+    }
+
+    @Benchmark
+    public Document getDocument() throws URISyntaxException {
+        return DownloadUtil.getDocument(html, url);
+    }
+
+    @Benchmark
+    public List<String> getImageUrls() {
+        return ReadComicOnlineTo.getImageUrls(html);
+    }
+
+}
@@ -0,0 +1,64 @@
+package jw.benchmarks;
+
+import jw.util.FileFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FileFormatBenchmark {
+
+    @Param({"png", "jpg", "webp", "mp3", "html", "unknown"})
+    public String format;
+
+    private byte[] head;
+
+    @Setup
+    public void setup() {
+        switch (format) {
+            case "png":
+                head = bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A);
+                break;
+            case "jpg":
+                head = bytes(0xFF, 0xD8, 0xFF, 0xE0);
+                break;
+            case "webp":
+                head = "RIFF\0\0\0\0WEBPVP8 ".getBytes(StandardCharsets.ISO_8859_1);
+                break;
+            case "mp3":
+                head = bytes(0xFF, 0xFB, 0x90, 0x64);
+                break;
+            case "html":
+                head = "\n  <!DOCTYPE html><html><head>".getBytes(StandardCharsets.ISO_8859_1);
+                break;
+            default:
+                head = new byte[0];
+        }
+        head = Arrays.copyOf(head, FileFormat.HEADER_SIZE);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            b[i] = (byte) values[i];
+        return b;
+    }
+
+    @Benchmark
+    public Optional<FileFormat> detect() {
+        return FileFormat.detect(head, head.length);
+    }
+
+}
@@ -0,0 +1,54 @@
+package jw.benchmarks;
+
+import jw.scrapers.OpenStreetMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.Point;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OpenStreetMapBenchmark {
+
+    private static final int COORDINATES = 1024;
+
+    @Param({"10", "18"})
+    public int zoom;
+
+    private final double[] lats = new double[COORDINATES];
+    private final double[] lons = new double[COORDINATES];
+    private int i = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int j = 0; j < COORDINATES; j++) {
+            lats[j] = random.nextDouble() * 170 - 85;
+            lons[j] = random.nextDouble() * 360 - 180;
+        }
+    }
+
+    @Benchmark
+    public Point latLonToTileIndex() {
+        int j = i++ & (COORDINATES - 1);
+        return OpenStreetMap.latLonToTileIndex(zoom, lats[j], lons[j]);
+    }
+
+    @Benchmark
+    public URL tileUrl() {
+        int j = i++ & (COORDINATES - 1);
+        int n = 1 << zoom;
+        return OpenStreetMap.tileUrl("https://a.tile.openstreetmap.org", zoom, j * 7919 % n, j * 104729 % n);
+    }
+
+}
@@ -0,0 +1,263 @@
+package jw.scrapers;
+
+import com.google.common.io.Files;
+import jw.util.DownloadUtil;
+import jw.util.HostLimiter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Batch {
+
+    public static void main(String[] args) {
+        try {
+            CommandLine.call(new BatchCallable(), System.out, args);
+        } catch (Exception e) {
+            Throwable cause = e.getCause();
+            LOGGER.error(cause);
+        }
+    }
+
+    @CommandLine.Command(
+            name = "batch",
+            version = "0.1.0",
+            description = "%nRuns a manifest of scraper jobs, one command line per line. " +
+                    "Jobs for different sites run side by side, so that each site's delay is spent on work for the others, " +
+                    "while jobs for the same site run one after another.%n",
+            footerHeading = "%nExamples%n",
+            footer = "# jobs.txt, with the job arguments of the osm, khinsider, mangahere, mangastream,%n" +
+                    "# readcomicsio and readcomiconlineto commands; blank lines and # comments are skipped%n" +
+                    "osm -z 13 --min 1.5,103.6 --max 1.2,104.1%n" +
+                    "khinsider https://downloads.khinsider.com/game-soundtracks/album/{name}%n" +
+                    "mangahere http://www.mangahere.cc/manga/{name}/ --chapters 1-3%n%n" +
+                    "$ batch jobs.txt",
+            sortOptions = false,
+            requiredOptionMarker = '*',
+            abbreviateSynopsis = true)
+    private static class BatchCallable implements Callable<Void> {
+        @CommandLine.Parameters(index = "0", arity = "1", description = "manifest of jobs")
+        private File manifest;
+
+        @CommandLine.Option(names = {"-d", "--delay"}, description = "delay between downloads from the same host in milliseconds (default: 1500)")
+        private long delay = 1500L;
+
+        @CommandLine.Option(names = {"-r", "--retries"}, description = "number of retries per download (default: 3)")
+        private int retries = 3;
+
+        @CommandLine.Option(names = {"-t", "--threads"}, description = "number of concurrent downloads per site (default: 1)")
+        private int threads = 1;
+
+        @CommandLine.Option(names = {"-c", "--connections"}, description = "max concurrent connections per host across all jobs, 0 for no limit (default: 2)")
+        private int connections = 2;
+
+        @CommandLine.Option(names = {"--stats"}, description = "interval between request metrics summaries in seconds, 0 to only summarize at exit (default: 60)")
+        private long statsInterval = 60L;
+
+        @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "show this help message and exit")
+        private boolean helpRequested;
+
+        @CommandLine.Option(names = {"-V", "--version"}, versionHelp = true, description = "display version info")
+        private boolean versionInfoRequested;
+
+        @Override
+        public Void call() throws Exception {
+            List<Entry> entries = readManifest(manifest);
+            HostLimiter hostLimiter = new HostLimiter(delay);
+            hostLimiter.setMaxConnections(connections);
+            Batch batch = new Batch(hostLimiter);
+            batch.setRetries(retries);
+            batch.setThreads(threads);
+            batch.setStatsInterval(statsInterval);
+            int failed = batch.run(entries);
+            if (failed > 0)
+                throw new IOException(failed + " of " + entries.size() + " jobs failed");
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final int line;
+        private final String commandLine;
+        private final Jobs.JobCommand command;
+        private String result = "not run";
+        private long millis;
+
+        Entry(int line, String commandLine, Jobs.JobCommand command) {
+            this.line = line;
+            this.commandLine = commandLine;
+            this.command = command;
+        }
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final HostLimiter hostLimiter;
+    private int retries = 3;
+    private int threads = 1;
+    private long statsInterval = 60L;
+
+    /**
+     * @param hostLimiter delay and connection limits shared by all jobs
+     */
+    public Batch(HostLimiter hostLimiter) {
+        this.hostLimiter = hostLimiter;
+    }
+
+    /**
+     * Parses every line up front, so that a typo fails the batch before any download starts.
+     */
+    private static List<Entry> readManifest(File manifest) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        List<String> lines = Files.readLines(manifest, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            try {
+                entries.add(new Entry(i + 1, line, Jobs.parse(line.split("\\s+"))));
+            } catch (IllegalArgumentException | CommandLine.ParameterException e) {
+                errors.add("line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        if (!errors.isEmpty())
+            throw new IllegalArgumentException("Invalid manifest " + manifest + System.lineSeparator()
+                    + String.join(System.lineSeparator(), errors));
+        return entries;
+    }
+
+    /**
+     * Runs one lane per host, each working through its jobs in manifest order.
+     *
+     * @return number of failed jobs
+     */
+    private int run(List<Entry> entries) throws InterruptedException {
+        Map<String, List<Entry>> lanes = new LinkedHashMap<>();
+        for (Entry entry : entries)
+            lanes.computeIfAbsent(entry.command.getHost(), h -> new ArrayList<>()).add(entry);
+        LOGGER.info("Running {} jobs for {} hosts", entries.size(), lanes.size());
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, lanes.size()),
+                r -> new Thread(r, "lane-" + count.incrementAndGet()));
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (Map.Entry<String, List<Entry>> lane : lanes.entrySet())
+                futures.add(executor.submit(() -> runLane(lane.getKey(), lane.getValue())));
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.error(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int failed = 0;
+        for (Entry entry : entries) {
+            LOGGER.info("line {}: {} in {}s: {}", entry.line, entry.result,
+                    TimeUnit.MILLISECONDS.toSeconds(entry.millis), entry.commandLine);
+            if (!entry.result.equals("done"))
+                failed++;
+        }
+        return failed;
+    }
+
+    /**
+     * Reuses one {@link DownloadUtil} for consecutive jobs of the same type, but builds a
+     * new one after a failure, so that the failed job's leftover tasks and errors stay out
+     * of the next job.
+     */
+    private void runLane(String host, List<Entry> entries) {
+        DownloadUtil downloadUtil = null;
+        Class<?> configuredFor = null;
+        try {
+            for (Entry entry : entries) {
+                if (downloadUtil != null && configuredFor != entry.command.getClass()) {
+                    closeQuietly(downloadUtil);
+                    downloadUtil = null;
+                }
+                if (downloadUtil == null) {
+                    downloadUtil = newDownloadUtil(host, entry.command);
+                    configuredFor = entry.command.getClass();
+                }
+                LOGGER.info("Running line {}: {}", entry.line, entry.commandLine);
+                long start = System.currentTimeMillis();
+                try {
+                    entry.command.run(downloadUtil);
+                    entry.result = "done";
+                } catch (Exception e) {
+                    LOGGER.error("Line {} failed", entry.line, e);
+                    entry.result = "failed (" + e + ")";
+                    closeQuietly(downloadUtil);
+                    downloadUtil = null;
+                }
+                entry.millis = System.currentTimeMillis() - start;
+            }
+        } finally {
+            if (downloadUtil != null)
+                closeQuietly(downloadUtil);
+        }
+    }
+
+    private DownloadUtil newDownloadUtil(String host, Jobs.JobCommand command) {
+        DownloadUtil downloadUtil = new DownloadUtil();
+        downloadUtil.setHostLimiter(hostLimiter);
+        downloadUtil.setNumRetries(retries);
+        downloadUtil.setThreads(threads);
+        downloadUtil.setStreaming(true);
+        downloadUtil.enableMetrics("batch-" + host, statsInterval);
+        Jobs.configure(command, downloadUtil);
+        return downloadUtil;
+    }
+
+    private static void closeQuietly(DownloadUtil downloadUtil) {
+        try {
+            downloadUtil.close();
+        } catch (Exception e) {
+            LOGGER.warn(e);
+        }
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public long getStatsInterval() {
+        return statsInterval;
+    }
+
+    public void setStatsInterval(long statsInterval) {
+        this.statsInterval = statsInterval;
+    }
+
+}
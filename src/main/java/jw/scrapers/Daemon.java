@@ -0,0 +1,525 @@
+package jw.scrapers;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jw.util.DownloadUtil;
+import jw.util.HostLimiter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Daemon implements AutoCloseable {
+
+    public static void main(String[] args) {
+        try {
+            CommandLine.call(new DaemonCallable(), System.out, args);
+        } catch (Exception e) {
+            Throwable cause = e.getCause();
+            LOGGER.error(cause);
+        }
+    }
+
+    @CommandLine.Command(
+            name = "scrapersd",
+            version = "0.1.0",
+            description = "%nRuns scraper jobs submitted over a local HTTP API, keeping web clients and connections warm between jobs.%n" +
+                    "Jobs are queued and run concurrently; requests to the same host share one delay and connection limit.%n",
+            footerHeading = "%nExamples%n",
+            footer = "# Start the daemon in the directory jobs write to, running 2 jobs at a time%n" +
+                    "$ cd ~/Downloads && scrapersd -j 2%n%n" +
+                    "# Requests must carry the token the daemon keeps in ~/.scrapers/scrapersd.token%n" +
+                    "$ auth=\"Authorization: Bearer $(cat ~/.scrapers/scrapersd.token)\"%n%n" +
+                    "# Submit jobs, with the job arguments of the osm, khinsider, mangahere, mangastream,%n" +
+                    "# readcomicsio and readcomiconlineto commands%n" +
+                    "$ curl -H \"$auth\" -d 'osm -z 13 --min 1.5,103.6 --max 1.2,104.1' localhost:8035/jobs%n" +
+                    "$ curl -H \"$auth\" -d 'mangahere http://www.mangahere.cc/manga/{name}/ --chapters 1-5' localhost:8035/jobs%n" +
+                    "$ curl -H \"$auth\" -d 'khinsider https://downloads.khinsider.com/game-soundtracks/album/{name}' localhost:8035/jobs%n%n" +
+                    "# List jobs, show one job, cancel one job%n" +
+                    "$ curl -H \"$auth\" localhost:8035/jobs%n" +
+                    "$ curl -H \"$auth\" localhost:8035/jobs/1%n" +
+                    "$ curl -H \"$auth\" -X DELETE localhost:8035/jobs/1",
+            sortOptions = false,
+            requiredOptionMarker = '*',
+            abbreviateSynopsis = true)
+    private static class DaemonCallable implements Callable<Void> {
+
+        @CommandLine.Option(names = {"--port"}, description = "port to listen on at localhost (default: 8035)")
+        private int port = 8035;
+
+        @CommandLine.Option(names = {"--root"}, description = "directory that job output must stay inside (default: current directory)")
+        private File root = new File(".");
+
+        @CommandLine.Option(names = {"--token-file"}, description = "file holding the API token, created if missing (default: ~/.scrapers/scrapersd.token)")
+        private File tokenFile = new File(System.getProperty("user.home"), ".scrapers/scrapersd.token");
+
+        @CommandLine.Option(names = {"-j", "--jobs"}, description = "number of jobs to run at the same time (default: 2)")
+        private int jobs = 2;
+
+        @CommandLine.Option(names = {"-d", "--delay"}, description = "delay between downloads from the same host in milliseconds (default: 1500)")
+        private long delay = 1500L;
+
+        @CommandLine.Option(names = {"-r", "--retries"}, description = "number of retries per download (default: 3)")
+        private int retries = 3;
+
+        @CommandLine.Option(names = {"-t", "--threads"}, description = "number of concurrent downloads per job (default: 1)")
+        private int threads = 1;
+
+        @CommandLine.Option(names = {"-c", "--connections"}, description = "max concurrent connections per host across all jobs, 0 for no limit (default: 2)")
+        private int connections = 2;
+
+        @CommandLine.Option(names = {"--stats"}, description = "interval between request metrics summaries in seconds, 0 to only summarize at exit (default: 60)")
+        private long statsInterval = 60L;
+
+        @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "show this help message and exit")
+        private boolean helpRequested;
+
+        @CommandLine.Option(names = {"-V", "--version"}, versionHelp = true, description = "display version info")
+        private boolean versionInfoRequested;
+
+        @Override
+        public Void call() throws Exception {
+            HostLimiter hostLimiter = new HostLimiter(delay);
+            hostLimiter.setMaxConnections(connections);
+            Daemon daemon = new Daemon(jobs, hostLimiter);
+            daemon.setRetries(retries);
+            daemon.setThreads(threads);
+            daemon.setStatsInterval(statsInterval);
+            daemon.setRoot(root);
+            daemon.setToken(loadToken(tokenFile));
+            Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+            daemon.start(port);
+            daemon.awaitTermination();
+            return null;
+        }
+    }
+
+    private enum State {QUEUED, RUNNING, DONE, FAILED, CANCELLED}
+
+    private static class Job {
+        private final long id;
+        private final String command;
+        private final Set<Path> exclusiveOutputs;
+        private volatile State state = State.QUEUED;
+        private volatile String message = "";
+        private volatile long started;
+        private volatile long finished;
+        private volatile boolean cancelled = false;
+        private Future<?> future;
+
+        Job(long id, String command, Set<Path> exclusiveOutputs) {
+            this.id = id;
+            this.command = command;
+            this.exclusiveOutputs = exclusiveOutputs;
+        }
+
+        boolean isFinished() {
+            return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+        }
+
+        @Override
+        public String toString() {
+            long seconds = started == 0L ? 0L :
+                    TimeUnit.MILLISECONDS.toSeconds((finished == 0L ? System.currentTimeMillis() : finished) - started);
+            return id + "\t" + state + "\t" + seconds + "s\t" + command + "\t" + message;
+        }
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAX_FINISHED_JOBS = 1000;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final Map<String, Deque<DownloadUtil>> idle = new HashMap<>();
+    private final Map<String, AtomicInteger> created = new HashMap<>();
+    private final Map<Long, Job> jobs = new LinkedHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1L);
+    private final ExecutorService executor;
+    private final HostLimiter hostLimiter;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private HttpServer server;
+    private int retries = 3;
+    private int threads = 1;
+    private long statsInterval = 60L;
+    private File root = new File(".");
+    private String token;
+
+    /**
+     * @param hostLimiter delay and connection limits shared by all jobs
+     */
+    public Daemon(int concurrentJobs, HostLimiter hostLimiter) {
+        this.hostLimiter = hostLimiter;
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(concurrentJobs, r -> new Thread(r, "job-" + count.incrementAndGet()));
+    }
+
+    /**
+     * Reads the API token from file, first creating the file readable only by its owner
+     * with a random token if it does not exist.
+     */
+    static String loadToken(File file) throws IOException {
+        if (!file.exists()) {
+            byte[] bytes = new byte[32];
+            new SecureRandom().nextBytes(bytes);
+            Files.createParentDirs(file);
+            if (file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"))
+                java.nio.file.Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            Files.asCharSink(file, StandardCharsets.UTF_8).write(BaseEncoding.base16().lowerCase().encode(bytes));
+            LOGGER.info("Created API token in {}", file);
+        }
+        return Files.asCharSource(file, StandardCharsets.UTF_8).read().trim();
+    }
+
+    /**
+     * @throws IllegalStateException if no token is set, as the API must not be left open
+     */
+    public void start(int port) throws IOException {
+        if (token == null || token.isEmpty())
+            throw new IllegalStateException("token required");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handle);
+        server.start();
+        LOGGER.info("Listening on {}", server.getAddress());
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            // browsers send Origin with cross-site requests, which would otherwise let any web page reach the API
+            if (exchange.getRequestHeaders().containsKey("Origin")) {
+                respond(exchange, 403, "cross-origin requests not allowed\n");
+                return;
+            }
+            if (!isAuthorized(exchange)) {
+                respond(exchange, 401, "missing or invalid token\n");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath().replaceAll("/+$", "");
+            String method = exchange.getRequestMethod();
+            if (path.equals("/jobs")) {
+                if (method.equals("POST"))
+                    submit(exchange);
+                else if (method.equals("GET"))
+                    respond(exchange, 200, listJobs());
+                else
+                    respond(exchange, 405, "method not allowed\n");
+                return;
+            }
+            Job job = null;
+            if (path.matches("/jobs/\\d+")) {
+                synchronized (jobs) {
+                    job = jobs.get(Long.parseLong(path.substring("/jobs/".length())));
+                }
+            }
+            if (job == null)
+                respond(exchange, 404, "no such job\n");
+            else if (method.equals("GET"))
+                respond(exchange, 200, job + "\n");
+            else if (method.equals("DELETE"))
+                respond(exchange, 200, cancel(job) + "\n");
+            else
+                respond(exchange, 405, "method not allowed\n");
+        } catch (RuntimeException e) {
+            LOGGER.error(e);
+            respond(exchange, 500, e + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean isAuthorized(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        return authorization != null && MessageDigest.isEqual(
+                authorization.getBytes(StandardCharsets.UTF_8),
+                ("Bearer " + token).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean isInsideRoot(File file) throws IOException {
+        return file.getCanonicalFile().toPath().startsWith(root.getCanonicalFile().toPath());
+    }
+
+    /**
+     * Body is a command line: a job type followed by that command's arguments, separated by whitespace.
+     */
+    private void submit(HttpExchange exchange) throws IOException {
+        String body = new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8).trim();
+        String[] args = body.isEmpty() ? new String[0] : body.split("\\s+");
+        Jobs.JobCommand command;
+        try {
+            command = Jobs.parse(args);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage() + "\n");
+            return;
+        } catch (CommandLine.ParameterException e) {
+            ByteArrayOutputStream usage = new ByteArrayOutputStream();
+            e.getCommandLine().usage(new PrintStream(usage, true, "UTF-8"), CommandLine.Help.Ansi.OFF);
+            respond(exchange, 400, e.getMessage() + "\n" + usage.toString("UTF-8"));
+            return;
+        }
+        String kind = args[0];
+        command.resolveAgainst(root);
+        for (File output : command.getOutputs()) {
+            if (!isInsideRoot(output)) {
+                respond(exchange, 403, "output " + output + " is outside " + root.getCanonicalPath() + "\n");
+                return;
+            }
+        }
+
+        Set<Path> exclusiveOutputs = new HashSet<>();
+        for (File output : command.getExclusiveOutputs())
+            exclusiveOutputs.add(output.getCanonicalFile().toPath());
+
+        Job job;
+        Job conflicting;
+        synchronized (jobs) {
+            conflicting = findUnfinishedUsing(exclusiveOutputs);
+            job = conflicting == null ? new Job(nextId.getAndIncrement(), body, exclusiveOutputs) : null;
+            if (job != null) {
+                jobs.put(job.id, job);
+                pruneJobs();
+                job.future = executor.submit(() -> run(job, kind, command));
+            }
+        }
+        if (job == null) {
+            respond(exchange, 409, "output in use by job " + conflicting.id + "\n");
+            return;
+        }
+        LOGGER.info("Queued job {}: {}", job.id, body);
+        respond(exchange, 201, job.id + "\n");
+    }
+
+    /**
+     * Separate journal and archive instances on the same files would interleave their writes,
+     * so a job may not share exclusive outputs with a queued or running one.
+     */
+    private Job findUnfinishedUsing(Set<Path> exclusiveOutputs) {
+        for (Job job : jobs.values()) {
+            if (!job.isFinished() && !Collections.disjoint(job.exclusiveOutputs, exclusiveOutputs))
+                return job;
+        }
+        return null;
+    }
+
+    private void run(Job job, String kind, Jobs.JobCommand command) {
+        if (job.cancelled)
+            return;
+        job.started = System.currentTimeMillis();
+        job.state = State.RUNNING;
+        LOGGER.info("Running job {}: {}", job.id, job.command);
+        DownloadUtil downloadUtil = null;
+        boolean reusable = false;
+        try {
+            downloadUtil = borrow(kind, command);
+            DownloadUtil.Lease lease = downloadUtil.leaseWebClient();
+            try {
+                command.run(downloadUtil);
+            } finally {
+                lease.close();
+            }
+            job.state = State.DONE;
+            reusable = true;
+        } catch (Exception e) {
+            LOGGER.error("Job {} failed", job.id, e);
+            job.message = String.valueOf(e);
+            job.state = job.cancelled ? State.CANCELLED : State.FAILED;
+        } finally {
+            job.finished = System.currentTimeMillis();
+            LOGGER.info("Job {} {}", job.id, job.state);
+            if (downloadUtil != null) {
+                if (reusable)
+                    giveBack(kind, downloadUtil);
+                else
+                    closeQuietly(downloadUtil);
+            }
+        }
+    }
+
+    private String cancel(Job job) {
+        synchronized (jobs) {
+            if (job.isFinished())
+                return job.toString();
+            job.cancelled = true;
+            if (job.state == State.QUEUED) {
+                job.state = State.CANCELLED;
+                job.finished = System.currentTimeMillis();
+            }
+            job.future.cancel(true);
+        }
+        return job.toString();
+    }
+
+    private String listJobs() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (jobs) {
+            for (Job job : jobs.values())
+                sb.append(job).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void pruneJobs() {
+        int finished = 0;
+        for (Job job : jobs.values()) {
+            if (job.isFinished())
+                finished++;
+        }
+        Iterator<Job> it = jobs.values().iterator();
+        while (finished > MAX_FINISHED_JOBS && it.hasNext()) {
+            if (it.next().isFinished()) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    /**
+     * Takes an idle {@link DownloadUtil} for the job type, or creates one. Each is used by
+     * one job at a time, so that waiting on and failing its tasks stays within the job.
+     */
+    private DownloadUtil borrow(String kind, Jobs.JobCommand command) {
+        int n;
+        synchronized (idle) {
+            DownloadUtil downloadUtil = idle.computeIfAbsent(kind, k -> new ArrayDeque<>()).pollLast();
+            if (downloadUtil != null)
+                return downloadUtil;
+            n = created.computeIfAbsent(kind, k -> new AtomicInteger()).incrementAndGet();
+        }
+        DownloadUtil downloadUtil = new DownloadUtil();
+        downloadUtil.setHostLimiter(hostLimiter);
+        downloadUtil.setNumRetries(retries);
+        downloadUtil.setThreads(threads);
+        downloadUtil.setStreaming(true);
+        downloadUtil.enableMetrics(kind + "-" + n, statsInterval);
+        Jobs.configure(command, downloadUtil);
+        return downloadUtil;
+    }
+
+    private void giveBack(String kind, DownloadUtil downloadUtil) {
+        synchronized (idle) {
+            if (server != null) {
+                idle.get(kind).addLast(downloadUtil);
+                return;
+            }
+        }
+        closeQuietly(downloadUtil);
+    }
+
+    private static void closeQuietly(DownloadUtil downloadUtil) {
+        try {
+            downloadUtil.close();
+        } catch (Exception e) {
+            LOGGER.warn(e);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @param root directory that job output must stay inside
+     */
+    public void setRoot(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @param token secret that requests must present as {@code Authorization: Bearer <token>}
+     */
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public long getStatsInterval() {
+        return statsInterval;
+    }
+
+    public void setStatsInterval(long statsInterval) {
+        this.statsInterval = statsInterval;
+    }
+
+    /**
+     * Stops accepting jobs, interrupts running ones and closes the idle clients.
+     */
+    @Override
+    public void close() {
+        synchronized (idle) {
+            if (server == null)
+                return;
+            server.stop(1);
+            server = null;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1L, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (idle) {
+            idle.values().forEach(utils -> utils.forEach(Daemon::closeQuietly));
+            idle.clear();
+        }
+        terminated.countDown();
+    }
+
+}
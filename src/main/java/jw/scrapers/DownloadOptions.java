@@ -0,0 +1,68 @@
+package jw.scrapers;
+
+import jw.util.DownloadUtil;
+import picocli.CommandLine;
+
+import java.io.IOException;
+
+/**
+ * Network options shared by the scraper commands. Picocli picks up annotated fields of
+ * superclasses, so each command extends this and applies them with {@link #configure}.
+ */
+abstract class DownloadOptions {
+
+    @CommandLine.Option(names = {"-d", "--delay"}, description = "delay between downloads from the same host in milliseconds (default: 1500)")
+    private long delay = 1500L;
+
+    @CommandLine.Option(names = {"-r", "--retries"}, description = "number of retries per download (default: 3)")
+    private int retries = 3;
+
+    @CommandLine.Option(names = {"-t", "--threads"}, description = "number of concurrent downloads (default: 1)")
+    private int threads = 1;
+
+    @CommandLine.Option(names = {"--stats"}, description = "interval between request metrics summaries in seconds, 0 to only summarize at exit (default: 60)")
+    private long statsInterval = 60L;
+
+    @CommandLine.Option(names = {"--adaptive"}, description = "adapt request rate and connections per host to server health, starting from delay")
+    private boolean adaptive = false;
+
+    @CommandLine.Option(names = {"--max-rate"}, description = "max requests per second per host in adaptive mode (default: 10)")
+    private double maxRate = 10d;
+
+    @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "show this help message and exit")
+    private boolean helpRequested;
+
+    @CommandLine.Option(names = {"-V", "--version"}, versionHelp = true, description = "display version info")
+    private boolean versionInfoRequested;
+
+    private final String scraper;
+
+    /**
+     * @param scraper name the request metrics are reported under
+     */
+    DownloadOptions(String scraper) {
+        this.scraper = scraper;
+    }
+
+    /**
+     * Applies the options, then the command's own settings, then adaptive mode, which
+     * starts from the connection limit the command has set.
+     */
+    void configure(DownloadUtil downloadUtil) throws IOException {
+        downloadUtil.setNumRetries(retries);
+        downloadUtil.setDelay(delay);
+        downloadUtil.setThreads(threads);
+        downloadUtil.setStreaming(true);
+        downloadUtil.enableMetrics(scraper, statsInterval);
+        configureScraper(downloadUtil);
+        if (adaptive)
+            downloadUtil.enableAdaptive(maxRate);
+    }
+
+    /**
+     * Settings specific to the command.
+     */
+    void configureScraper(DownloadUtil downloadUtil) {
+    }
+
+}
@@ -0,0 +1,416 @@
+package jw.scrapers;
+
+import com.google.common.collect.Range;
+import jw.util.DownloadUtil;
+import jw.util.SessionStore;
+import picocli.CommandLine;
+
+import java.awt.Point;
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Scraper jobs given as command lines, e.g. {@code mangahere <url> --chapters 1-5}, with the
+ * same job options as the corresponding command. Network options such as delay and threads
+ * belong to whoever runs the jobs.
+ */
+final class Jobs {
+
+    interface JobCommand {
+        void run(DownloadUtil downloadUtil) throws Exception;
+
+        /**
+         * Host whose pages drive the job, used to group jobs that compete for the same delay.
+         */
+        String getHost();
+
+        /**
+         * Files and directories the job writes to.
+         */
+        List<File> getOutputs();
+
+        /**
+         * Outputs holding state, such as journals and archives, that only one job at a time may write.
+         */
+        List<File> getExclusiveOutputs();
+
+        /**
+         * Makes relative paths relative to dir rather than to the working directory.
+         */
+        void resolveAgainst(File dir);
+    }
+
+    static final int MAX_CHAPTER_JOBS = 4;
+
+    private static final File DEFAULT_SESSION_FILE = new File(System.getProperty("user.home"), ".scrapers/readcomiconlineto.session");
+
+    private static final Map<String, Supplier<JobCommand>> COMMANDS;
+
+    static {
+        Map<String, Supplier<JobCommand>> commands = new LinkedHashMap<>();
+        commands.put("osm", OsmJob::new);
+        commands.put("khinsider", KhinsiderJob::new);
+        commands.put("mangahere", MangaHereJob::new);
+        commands.put("mangastream", MangaStreamJob::new);
+        commands.put("readcomicsio", ReadComicsIoJob::new);
+        commands.put("readcomiconlineto", ReadComicOnlineToJob::new);
+        COMMANDS = Collections.unmodifiableMap(commands);
+    }
+
+    private Jobs() {
+    }
+
+    static Iterable<String> getTypes() {
+        return COMMANDS.keySet();
+    }
+
+    /**
+     * @param args job type followed by its arguments
+     * @throws IllegalArgumentException         on an unknown job type
+     * @throws CommandLine.ParameterException on invalid arguments, with the job's usage available from its command line
+     */
+    static JobCommand parse(String... args) {
+        Supplier<JobCommand> supplier = args.length == 0 ? null : COMMANDS.get(args[0]);
+        if (supplier == null)
+            throw new IllegalArgumentException("job type must be one of " + COMMANDS.keySet());
+        JobCommand command = supplier.get();
+        CommandLine cmd = new CommandLine(command);
+        if (command instanceof OsmJob)
+            OpenStreetMap.registerConverters(cmd);
+        cmd.parse(Arrays.copyOfRange(args, 1, args.length));
+        return command;
+    }
+
+    /**
+     * Applies settings the job type needs to a fresh {@link DownloadUtil}.
+     */
+    static void configure(JobCommand command, DownloadUtil downloadUtil) {
+        if (command instanceof OsmJob)
+            downloadUtil.setCircuitFailFast(true);
+        else if (command instanceof MangaHereJob)
+            downloadUtil.setMaxWebClients(MAX_CHAPTER_JOBS + downloadUtil.getThreads());
+    }
+
+    private static File resolve(File dir, File file) {
+        return file == null || file.isAbsolute() ? file : new File(dir, file.getPath());
+    }
+
+    private static String host(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    @CommandLine.Command(name = "osm")
+    private static class OsmJob implements JobCommand {
+        @CommandLine.Option(names = {"-z", "--zoom"}, required = true, description = "required zoom level (0-19)")
+        private int zoomLevel;
+
+        @CommandLine.Option(names = {"-o", "--output"}, description = "output directory (default: tiles)")
+        private File outDir = new File("tiles");
+
+        @CommandLine.Option(names = {"--min"}, description = "top left of bounding box")
+        private Point2D.Double minLatLon;
+
+        @CommandLine.Option(names = {"--max"}, description = "bottom right of bounding box")
+        private Point2D.Double maxLatLon;
+
+        @CommandLine.Option(names = {"--resume"}, description = "resume download (inclusive)")
+        private Point resumeXY;
+
+        @CommandLine.Option(names = {"-p", "--parallel"}, description = "download tiles in parallel across all tile servers")
+        private boolean parallel = false;
+
+        @CommandLine.Option(names = {"--pack"}, description = "append tiles to a packed archive instead of one file per tile")
+        private File packFile;
+
+        @CommandLine.Option(names = {"--refresh"}, description = "only re-download tiles that changed since the last run")
+        private boolean refresh = false;
+
+        @CommandLine.Option(names = {"--dedup"}, description = "store identical tiles once, as hardlinks or packed archive references")
+        private boolean dedup = false;
+
+        @Override
+        public void run(DownloadUtil downloadUtil) throws Exception {
+            if (minLatLon != null ^ maxLatLon != null)
+                throw new IllegalArgumentException("min and max have to be specified together");
+            OpenStreetMap osm = new OpenStreetMap(zoomLevel, outDir, downloadUtil);
+            try {
+                osm.setParallel(parallel);
+                osm.openStores(packFile, dedup);
+                osm.setRefresh(refresh);
+                if (minLatLon != null) {
+                    osm.setMinMaxLatLon(minLatLon, maxLatLon);
+                    osm.downloadBoundingBoxTiles(Optional.ofNullable(resumeXY));
+                } else {
+                    osm.downloadAllTiles(Optional.ofNullable(resumeXY));
+                }
+            } catch (Exception e) {
+                // tiles already submitted still write to the stores, so let them finish first
+                try {
+                    downloadUtil.awaitCompletion();
+                } catch (Exception ignored) {
+                }
+                throw e;
+            } finally {
+                osm.closeStores();
+            }
+        }
+
+        @Override
+        public String getHost() {
+            return "tile.openstreetmap.org";
+        }
+
+        @Override
+        public List<File> getOutputs() {
+            return packFile == null ? Collections.singletonList(outDir) : Arrays.asList(outDir, packFile);
+        }
+
+        @Override
+        public List<File> getExclusiveOutputs() {
+            return Collections.singletonList(packFile == null ? outDir : packFile);
+        }
+
+        @Override
+        public void resolveAgainst(File dir) {
+            outDir = resolve(dir, outDir);
+            packFile = resolve(dir, packFile);
+        }
+    }
+
+    @CommandLine.Command(name = "khinsider")
+    private static class KhinsiderJob implements JobCommand {
+        @CommandLine.Parameters(index = "0", arity = "1", description = "url of soundtrack")
+        private String url;
+
+        @CommandLine.Option(names = {"-o", "--output"}, description = "output directory (default: out)")
+        private File outDir = new File("out");
+
+        @Override
+        public void run(DownloadUtil downloadUtil) throws Exception {
+            new Khinsider(outDir, downloadUtil).downloadAll(url);
+        }
+
+        @Override
+        public String getHost() {
+            return host(url);
+        }
+
+        @Override
+        public List<File> getOutputs() {
+            return Collections.singletonList(outDir);
+        }
+
+        @Override
+        public List<File> getExclusiveOutputs() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void resolveAgainst(File dir) {
+            outDir = resolve(dir, outDir);
+        }
+    }
+
+    @CommandLine.Command(name = "mangahere")
+    private static class MangaHereJob implements JobCommand {
+        @CommandLine.Parameters(index = "0", arity = "1", description = "url of first page of chapter, or of series")
+        private String url;
+
+        @CommandLine.Option(names = {"-o", "--output"}, description = "output directory (default: out)")
+        private File outDir = new File("out");
+
+        @CommandLine.Option(names = {"--original"}, description = "use original filename")
+        private boolean useOriginalFilename = false;
+
+        @CommandLine.Option(names = {"--cbz"}, description = "write each chapter as a CBZ archive instead of a directory of images")
+        private boolean cbz = false;
+
+        @CommandLine.Option(names = {"--fast"}, description = "parse pages without JavaScript, only falling back to it when needed")
+        private boolean fast = false;
+
+        @CommandLine.Option(names = {"--chapters"}, description = "range of chapter numbers to download from series, e.g. 1-5")
+        private String chapters;
+
+        @CommandLine.Option(names = {"-j", "--jobs"}, description = "number of chapters to download at the same time (default: 1, max: " + MAX_CHAPTER_JOBS + ")")
+        private int jobs = 1;
+
+        @Override
+        public void run(DownloadUtil downloadUtil) throws Exception {
+            MangaHere obj = new MangaHere(outDir, downloadUtil, useOriginalFilename);
+            obj.setFast(fast);
+            obj.setCbz(cbz);
+            if (chapters == null && obj.isChapterUrl(url)) {
+                obj.download(url);
+            } else {
+                Range<Double> range = chapters == null ? Range.all() : MangaHere.parseChapterRange(chapters);
+                obj.downloadChapters(obj.getChapterUrls(url, range), Math.min(jobs, MAX_CHAPTER_JOBS));
+            }
+        }
+
+        @Override
+        public String getHost() {
+            return host(url);
+        }
+
+        @Override
+        public List<File> getOutputs() {
+            return Collections.singletonList(outDir);
+        }
+
+        @Override
+        public List<File> getExclusiveOutputs() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void resolveAgainst(File dir) {
+            outDir = resolve(dir, outDir);
+        }
+    }
+
+    @CommandLine.Command(name = "mangastream")
+    private static class MangaStreamJob implements JobCommand {
+        @CommandLine.Parameters(index = "0", arity = "1", description = "url of first page of chapter")
+        private String url;
+
+        @CommandLine.Option(names = {"-o", "--output"}, description = "output directory (default: out)")
+        private File outDir = new File("out");
+
+        @CommandLine.Option(names = {"--original"}, description = "use original filename")
+        private boolean useOriginalFilename = false;
+
+        @CommandLine.Option(names = {"--cbz"}, description = "write each chapter as a CBZ archive instead of a directory of images")
+        private boolean cbz = false;
+
+        @Override
+        public void run(DownloadUtil downloadUtil) throws Exception {
+            MangaStream obj = new MangaStream(outDir, downloadUtil, useOriginalFilename);
+            obj.setCbz(cbz);
+            obj.download(url);
+        }
+
+        @Override
+        public String getHost() {
+            return host(url);
+        }
+
+        @Override
+        public List<File> getOutputs() {
+            return Collections.singletonList(outDir);
+        }
+
+        @Override
+        public List<File> getExclusiveOutputs() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void resolveAgainst(File dir) {
+            outDir = resolve(dir, outDir);
+        }
+    }
+
+    @CommandLine.Command(name = "readcomicsio")
+    private static class ReadComicsIoJob implements JobCommand {
+        @CommandLine.Parameters(index = "0", arity = "1", description = "url of first page of chapter")
+        private String url;
+
+        @CommandLine.Option(names = {"-o", "--output"}, description = "output directory (default: out)")
+        private File outDir = new File("out");
+
+        @CommandLine.Option(names = {"--original"}, description = "use original filename")
+        private boolean useOriginalFilename = false;
+
+        @CommandLine.Option(names = {"--cbz"}, description = "write each chapter as a CBZ archive instead of a directory of images")
+        private boolean cbz = false;
+
+        @Override
+        public void run(DownloadUtil downloadUtil) throws Exception {
+            ReadComicsIo obj = new ReadComicsIo(outDir, downloadUtil, useOriginalFilename);
+            obj.setCbz(cbz);
+            obj.download(url);
+        }
+
+        @Override
+        public String getHost() {
+            return host(url);
+        }
+
+        @Override
+        public List<File> getOutputs() {
+            return Collections.singletonList(outDir);
+        }
+
+        @Override
+        public List<File> getExclusiveOutputs() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void resolveAgainst(File dir) {
+            outDir = resolve(dir, outDir);
+        }
+    }
+
+    @CommandLine.Command(name = "readcomiconlineto")
+    private static class ReadComicOnlineToJob implements JobCommand {
+        @CommandLine.Parameters(index = "0", arity = "1", description = "url of first page of chapter")
+        private String url;
+
+        @CommandLine.Option(names = {"-o", "--output"}, description = "output directory (default: out)")
+        private File outDir = new File("out");
+
+        @CommandLine.Option(names = {"--original"}, description = "use original filename")
+        private boolean useOriginalFilename = false;
+
+        @CommandLine.Option(names = {"--cbz"}, description = "write each chapter as a CBZ archive instead of a directory of images")
+        private boolean cbz = false;
+
+        @CommandLine.Option(names = {"--session"}, description = "file to save the Cloudflare session in (default: ~/.scrapers/readcomiconlineto.session)")
+        private File sessionFile = DEFAULT_SESSION_FILE;
+
+        @Override
+        public void run(DownloadUtil downloadUtil) throws Exception {
+            ReadComicOnlineTo obj = new ReadComicOnlineTo(outDir, downloadUtil, useOriginalFilename);
+            obj.setSessionStore(new SessionStore(sessionFile, "cf_clearance"));
+            obj.setCbz(cbz);
+            obj.download(url);
+        }
+
+        @Override
+        public String getHost() {
+            return host(url);
+        }
+
+        @Override
+        public List<File> getOutputs() {
+            // the default session file is the user's own, like the daemon token; only a chosen one is checked
+            return sessionFile == DEFAULT_SESSION_FILE ? Collections.singletonList(outDir) : Arrays.asList(outDir, sessionFile);
+        }
+
+        @Override
+        public List<File> getExclusiveOutputs() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void resolveAgainst(File dir) {
+            outDir = resolve(dir, outDir);
+            sessionFile = resolve(dir, sessionFile);
+        }
+    }
+
+}
@@ -12,8 +12,10 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
@@ -35,34 +37,41 @@ public class Khinsider implements AutoCloseable {
                     "For personal use only. Use responsibly!%n",
             footerHeading = "%nExamples%n",
             footer = "# Download all tracks%n" +
-                    "$ khinsider https://downloads.khinsider.com/game-soundtracks/album/{name}",
+                    "$ khinsider https://downloads.khinsider.com/game-soundtracks/album/{name}%n%n" +
+                    "# Download 4 tracks at a time, at most 2 from each host%n" +
+                    "$ khinsider https://downloads.khinsider.com/game-soundtracks/album/{name} -t 4 -c 2%n%n" +
+                    "# Download large files in 4 parallel ranges each%n" +
+                    "$ khinsider https://downloads.khinsider.com/game-soundtracks/album/{name} --segments 4 -c 4",
             sortOptions = false,
             requiredOptionMarker = '*',
             abbreviateSynopsis = true)
-    private static class KhinsiderCallable implements Callable<Void> {
+    private static class KhinsiderCallable extends PageDownloadOptions implements Callable<Void> {
         @CommandLine.Parameters(index = "0", arity = "1", description = "url of soundtrack")
         private String url;
 
         @CommandLine.Option(names = {"-o", "--output"}, description = "output directory (default: out)")
         private File outDir = new File("out");
 
-        @CommandLine.Option(names = {"-d", "--delay"}, description = "delay between each download in milliseconds (default: 1500)")
-        private long delay = 1500L;
+        @CommandLine.Option(names = {"-c", "--connections"}, description = "max concurrent connections per host, 0 for no limit (default: 2)")
+        private int connections = 2;
 
-        @CommandLine.Option(names = {"-r", "--retries"}, description = "number of retries per download (default: 3)")
-        private int retries = 3;
+        @CommandLine.Option(names = {"--segments"}, description = "split large files into this many ranges downloaded in parallel, if the server supports it (default: 1)")
+        private int segments = 1;
 
-        @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "show this help message and exit")
-        private boolean helpRequested;
+        KhinsiderCallable() {
+            super("khinsider");
+        }
 
-        @CommandLine.Option(names = {"-V", "--version"}, versionHelp = true, description = "display version info")
-        private boolean versionInfoRequested;
+        @Override
+        void configureScraper(DownloadUtil downloadUtil) {
+            downloadUtil.setMaxConnectionsPerHost(connections);
+            downloadUtil.setSegments(segments);
+        }
 
         @Override
         public Void call() throws Exception {
             DownloadUtil downloadUtil = new DownloadUtil();
-            downloadUtil.setNumRetries(retries);
-            downloadUtil.setDelay(delay);
+            configure(downloadUtil);
             try (Khinsider khinsider = new Khinsider(outDir, downloadUtil)) {
                 khinsider.downloadAll(url);
             } catch (Exception e) {
@@ -83,23 +92,41 @@ public class Khinsider implements AutoCloseable {
     }
 
     public void downloadAll(String url) throws IOException, URISyntaxException {
+        downloadUtil.scanOutput(outDir);
         Document doc = downloadUtil.getDocument(new URL(url));
         Elements hrefs = doc.getElementsByAttributeValueMatching("href", ".*mp3$");
         HashSet<String> links = hrefs.stream()
                 .map(x -> x.attr("abs:href"))
                 .collect(Collectors.toCollection(LinkedHashSet::new));
+        // each track's downloads are queued as soon as its page resolves, overlapping the two phases
         for (String link : links) {
-            downloadOne(link);
+            downloadUtil.submit(() -> submitDownloads(link));
         }
+        downloadUtil.awaitCompletion();
     }
 
     public void downloadOne(String url) throws IOException, URISyntaxException {
+        submitDownloads(url);
+        downloadUtil.awaitCompletion();
+    }
+
+    private void submitDownloads(String url) throws IOException, URISyntaxException {
+        for (URL downloadUrl : resolve(url)) {
+            downloadUtil.submit(() -> downloadUtil.downloadFileOriginalName(downloadUrl, outDir, false));
+        }
+    }
+
+    /**
+     * @return download links on a track page
+     */
+    public List<URL> resolve(String url) throws IOException, URISyntaxException {
         Document doc = downloadUtil.getDocument(new URL(url));
         Elements hrefs = doc.select("a:containsOwn(Click here to download)");
+        List<URL> downloadUrls = new ArrayList<>();
         for (Element href : hrefs) {
-            URL downloadUrl = new URL(href.attr("abs:href"));
-            downloadUtil.downloadFileOriginalName(downloadUrl, outDir, false);
+            downloadUrls.add(new URL(href.attr("abs:href")));
         }
+        return downloadUrls;
     }
 
     @Override
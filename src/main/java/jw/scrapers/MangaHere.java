@@ -3,7 +3,10 @@ package jw.scrapers;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.html.HtmlAnchor;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.google.common.collect.Range;
 import com.google.common.io.Files;
+import jw.util.ChapterArchive;
+import jw.util.DownloadPipeline;
 import jw.util.DownloadUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -16,9 +19,19 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 public class MangaHere implements AutoCloseable {
 
@@ -34,18 +47,22 @@ public class MangaHere implements AutoCloseable {
     @CommandLine.Command(
             name = "mangahere",
             version = "0.1.0",
-            description = "%nDownloads single chapters from MangaHere.%n" +
+            description = "%nDownloads single chapters, or a range of chapters of a series, from MangaHere.%n" +
                     "For personal use only. Use responsibly!%n",
             footerHeading = "%nExamples%n",
             footer = "# Download one chapter%n" +
                     "$ mangahere http://www.mangahere.cc/manga/{name}/{chapter}%n%n" +
-                    "# Download multiple chapters%n" +
-                    "$ for i in {1..5}; do mangahere http://www.mangahere.cc/manga/{name}/c${i}; done",
+                    "# Download chapters 1-5, two chapters at a time%n" +
+                    "$ mangahere http://www.mangahere.cc/manga/{name}/ --chapters 1-5 -j 2%n%n" +
+                    "# Download chapters 1-5 as CBZ archives%n" +
+                    "$ mangahere http://www.mangahere.cc/manga/{name}/ --chapters 1-5 --cbz%n%n" +
+                    "# Download every chapter of a series%n" +
+                    "$ mangahere http://www.mangahere.cc/manga/{name}/",
             sortOptions = false,
             requiredOptionMarker = '*',
             abbreviateSynopsis = true)
-    private static class MangaHereCallable implements Callable<Void> {
-        @CommandLine.Parameters(index = "0", arity = "1", description = "url of first page of chapter")
+    private static class MangaHereCallable extends PageDownloadOptions implements Callable<Void> {
+        @CommandLine.Parameters(index = "0", arity = "1", description = "url of first page of chapter, or of series")
         private String url;
 
         @CommandLine.Option(names = {"-o", "--output"}, description = "output directory (default: out)")
@@ -54,25 +71,40 @@ public class MangaHere implements AutoCloseable {
         @CommandLine.Option(names = {"--original"}, description = "use original filename")
         private boolean useOriginalFilename = false;
 
-        @CommandLine.Option(names = {"-d", "--delay"}, description = "delay between each download in milliseconds (default: 1500)")
-        private long delay = 1500L;
+        @CommandLine.Option(names = {"--fast"}, description = "parse pages without JavaScript, only falling back to it when needed")
+        private boolean fast = false;
 
-        @CommandLine.Option(names = {"-r", "--retries"}, description = "number of retries per download (default: 3)")
-        private int retries = 3;
+        @CommandLine.Option(names = {"--chapters"}, description = "range of chapter numbers to download from series, e.g. 1-5")
+        private String chapters;
 
-        @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "show this help message and exit")
-        private boolean helpRequested;
+        @CommandLine.Option(names = {"-j", "--jobs"}, description = "number of chapters to download at the same time (default: 1)")
+        private int jobs = 1;
 
-        @CommandLine.Option(names = {"-V", "--version"}, versionHelp = true, description = "display version info")
-        private boolean versionInfoRequested;
+        @CommandLine.Option(names = {"--cbz"}, description = "write each chapter as a CBZ archive instead of a directory of images")
+        private boolean cbz = false;
+
+        MangaHereCallable() {
+            super("mangahere");
+        }
+
+        @Override
+        void configureScraper(DownloadUtil downloadUtil) {
+            downloadUtil.setMaxWebClients(jobs + downloadUtil.getThreads());
+        }
 
         @Override
         public Void call() throws Exception {
             DownloadUtil downloadUtil = new DownloadUtil();
-            downloadUtil.setNumRetries(retries);
-            downloadUtil.setDelay(delay);
+            configure(downloadUtil);
             try (MangaHere obj = new MangaHere(outDir, downloadUtil, useOriginalFilename)) {
-                obj.download(url);
+                obj.setFast(fast);
+                obj.setCbz(cbz);
+                if (chapters == null && obj.isChapterUrl(url)) {
+                    obj.download(url);
+                } else {
+                    Range<Double> range = chapters == null ? Range.all() : parseChapterRange(chapters);
+                    obj.downloadChapters(obj.getChapterUrls(url, range), jobs);
+                }
             } catch (Exception e) {
                 throw e;
             }
@@ -80,11 +112,23 @@ public class MangaHere implements AutoCloseable {
         }
     }
 
+    static Range<Double> parseChapterRange(String value) {
+        String[] split = value.split("-");
+        if (split.length == 1)
+            return Range.singleton(Double.parseDouble(split[0]));
+        if (split.length != 2)
+            throw new IllegalArgumentException("Invalid chapter range format");
+        return Range.closed(Double.parseDouble(split[0]), Double.parseDouble(split[1]));
+    }
+
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int PIPELINE_CAPACITY = 8;
 
     private File outDir;
     private DownloadUtil downloadUtil;
     private boolean useOriginalFilename;
+    private boolean cbz = false;
+    private boolean fast = false;
 
     public MangaHere(File outDir, DownloadUtil downloadUtil, boolean useOriginalFilename) {
         this.outDir = outDir;
@@ -96,6 +140,87 @@ public class MangaHere implements AutoCloseable {
             "((?:https?://)?(?:www\\.)?mangahere\\.cc/manga/" +
                     "([^/]+)/((?:v[^/]+/)?c[^/]+))(?:/|/\\d+\\.html)?");
 
+    private Pattern SERIES_URL = Pattern.compile(
+            "((?:https?://)?(?:www\\.)?mangahere\\.cc/manga/([^/]+))(?:/.*)?");
+
+    private Pattern CHAPTER_NUMBER = Pattern.compile("c(\\d+(?:\\.\\d+)?)$");
+
+    public boolean isChapterUrl(String url) {
+        return VALID_URL.matcher(url).matches();
+    }
+
+    /**
+     * Resolves the chapters of the series that url belongs to, in ascending order.
+     */
+    public List<String> getChapterUrls(String url, Range<Double> range) throws IOException, URISyntaxException {
+        Matcher m = SERIES_URL.matcher(url);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Unrecognized URL format");
+        }
+        Document doc = downloadUtil.getDocument(new URL(m.group(1) + "/"));
+        Set<String> chapterUrls = new LinkedHashSet<>();
+        for (Element a : doc.select("a[href]")) {
+            Matcher cm = VALID_URL.matcher(a.attr("abs:href"));
+            if (cm.matches() && cm.group(2).equals(m.group(2)) && range.contains(chapterNumber(cm.group(3))))
+                chapterUrls.add(cm.group(1));
+        }
+        return chapterUrls.stream()
+                .sorted(Comparator.comparingDouble(u -> {
+                    Matcher cm = VALID_URL.matcher(u);
+                    cm.matches();
+                    return chapterNumber(cm.group(3));
+                }))
+                .collect(Collectors.toList());
+    }
+
+    private double chapterNumber(String chapter) {
+        Matcher m = CHAPTER_NUMBER.matcher(chapter);
+        return m.find() ? Double.parseDouble(m.group(1)) : Double.NaN;
+    }
+
+    /**
+     * Downloads chapters with up to {@code jobs} at a time, all sharing this instance's
+     * DownloadUtil, and with it the worker pool, host limits and cookies.
+     */
+    public void downloadChapters(List<String> chapterUrls, int jobs) throws IOException, URISyntaxException {
+        LOGGER.info("Downloading {} chapters", chapterUrls.size());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, jobs));
+        downloadUtil.prewarmWebClients(Math.min(jobs, chapterUrls.size()));
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (String chapterUrl : chapterUrls) {
+                futures.add(pool.submit(() -> {
+                    DownloadUtil.Lease lease = downloadUtil.leaseWebClient();
+                    try {
+                        download(chapterUrl);
+                    } finally {
+                        lease.close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    if (cause instanceof URISyntaxException)
+                        throw (URISyntaxException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     public void download(String url) throws IOException, URISyntaxException {
         Matcher m = VALID_URL.matcher(url);
         if (!m.matches()) {
@@ -104,38 +229,108 @@ public class MangaHere implements AutoCloseable {
         String baseurl = m.group(1);
         String name = m.group(2);
         String chapter = m.group(3);
-        int pageNumber = 1;
 
         File outChapterDir = Paths.get(outDir.toString(), name, chapter).toFile();
-        Page page = downloadUtil.getPage(new URL(baseurl));
-        downloadRecursive(page, chapter, outChapterDir, pageNumber);
-    }
-
-    public void downloadRecursive(Page page, String chapter, File outChapterDir, int pageNumber) throws IOException, URISyntaxException {
-        Matcher m = VALID_URL.matcher(page.getUrl().toString());
-        if (!(m.matches() && m.group(3).equals(chapter))) {
+        if (downloadUtil.isChapterComplete(outChapterDir, cbz)) {
+            LOGGER.info("Skipping chapter {}, already downloaded", chapter);
             return;
         }
-        HtmlPage htmlpage = (HtmlPage) page;
-        HtmlAnchor anchor = htmlpage.querySelector("a.next_page");
-
-        Document doc = DownloadUtil.getDocument(page);
-        Element elem = doc.selectFirst("section#viewer > a");
-        if (elem == null) {
-            LOGGER.info("Invalid html(possibly advertisement), refreshing page");
-            downloadRecursive(htmlpage.refresh(), chapter, outChapterDir, pageNumber);
-            return;
+        try (ChapterArchive archive = cbz ? new ChapterArchive(new File(outChapterDir.getPath() + ".cbz")) : null;
+             DownloadPipeline pipeline = new DownloadPipeline(downloadUtil, PIPELINE_CAPACITY)) {
+            if (fast) {
+                downloadPagesFast(baseurl, chapter, outChapterDir, archive, pipeline);
+            } else {
+                Page page = downloadUtil.getPage(new URL(baseurl));
+                downloadPages(page, chapter, outChapterDir, archive, pipeline);
+            }
+            pipeline.finish();
+            if (archive != null)
+                archive.finish();
+        }
+    }
+
+    /**
+     * Like {@link #downloadPages}, but parses each page with Jsoup and follows the
+     * {@code a.next_page} href, only loading a page with JavaScript when the viewer is missing.
+     */
+    public void downloadPagesFast(String url, String chapter, File outChapterDir, ChapterArchive archive, DownloadPipeline pipeline) throws IOException, URISyntaxException {
+        int pageNumber = 1;
+        int refreshes = 0;
+        Matcher m = VALID_URL.matcher(url);
+        while (m.matches() && m.group(3).equals(chapter)) {
+            Document doc = downloadUtil.getDocument(new URL(url));
+            Element elem = doc.selectFirst("section#viewer > a");
+            if (elem == null) {
+                // don't serve the advert from the cache on the next attempt
+                downloadUtil.invalidateCached(new URL(url));
+                LOGGER.info("Viewer not found, retrying with JavaScript");
+                Page page = downloadUtil.getPage(new URL(url));
+                if (!(page instanceof HtmlPage))
+                    throw new IOException(url + ": not an html page");
+                // the DOM after scripts ran, not the markup the server sent
+                doc = DownloadUtil.getDocument(((HtmlPage) page).asXml(), page.getUrl());
+                elem = doc.selectFirst("section#viewer > a");
+                if (elem == null) {
+                    if (refreshes++ >= downloadUtil.getNumRetries())
+                        throw new IOException(url + ": viewer not found after " + refreshes + " attempts");
+                    LOGGER.info("Invalid html(possibly advertisement), refreshing page");
+                    continue;
+                }
+            }
+            refreshes = 0;
+            Element img = elem.select("> img").get(1);
+            URL imgurl = new URL(img.attr("abs:src"));
+
+            pipeline.put(downloadUtil.pageTask(imgurl, outChapterDir, archive, pageNumber, useOriginalFilename));
+            Element next = doc.selectFirst("a.next_page");
+            if (next == null)
+                break;
+            url = next.attr("abs:href");
+            m = VALID_URL.matcher(url);
+            pageNumber++;
         }
-        Element img = elem.select("> img").get(1);
-        URL imgurl = new URL(img.attr("abs:src"));
-
-        if (useOriginalFilename) {
-            downloadUtil.downloadFileOriginalName(imgurl, outChapterDir, false);
-        } else {
-            String imgFilename = String.valueOf(pageNumber);
-            downloadUtil.downloadFileGuessExtension(imgurl, outChapterDir, imgFilename);
+    }
+
+    /**
+     * Follows the page chain until it leaves the chapter, queueing each page's image on the pipeline.
+     *
+     * @param archive archive to add pages to, or null to save them in outChapterDir
+     */
+    public void downloadPages(Page page, String chapter, File outChapterDir, ChapterArchive archive, DownloadPipeline pipeline) throws IOException, URISyntaxException {
+        int pageNumber = 1;
+        int refreshes = 0;
+        Matcher m = VALID_URL.matcher(page.getUrl().toString());
+        while (m.matches() && m.group(3).equals(chapter)) {
+            HtmlPage htmlpage = (HtmlPage) page;
+            HtmlAnchor anchor = htmlpage.querySelector("a.next_page");
+
+            Document doc = DownloadUtil.getDocument(page);
+            Element elem = doc.selectFirst("section#viewer > a");
+            if (elem == null) {
+                if (refreshes++ >= downloadUtil.getNumRetries())
+                    throw new IOException(page.getUrl() + ": viewer not found after " + refreshes + " attempts");
+                LOGGER.info("Invalid html(possibly advertisement), refreshing page");
+                page = htmlpage.refresh();
+                m = VALID_URL.matcher(page.getUrl().toString());
+                continue;
+            }
+            refreshes = 0;
+            Element img = elem.select("> img").get(1);
+            URL imgurl = new URL(img.attr("abs:src"));
+
+            pipeline.put(downloadUtil.pageTask(imgurl, outChapterDir, archive, pageNumber, useOriginalFilename));
+            page = anchor.click();
+            m = VALID_URL.matcher(page.getUrl().toString());
+            pageNumber++;
         }
-        downloadRecursive(anchor.click(), chapter, outChapterDir, ++pageNumber);
+    }
+
+    public void setFast(boolean fast) {
+        this.fast = fast;
+    }
+
+    public void setCbz(boolean cbz) {
+        this.cbz = cbz;
     }
 
     @Override
@@ -1,6 +1,8 @@
 package jw.scrapers;
 
 import com.google.common.io.Files;
+import jw.util.ChapterArchive;
+import jw.util.DownloadPipeline;
 import jw.util.DownloadUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -39,7 +41,7 @@ public class MangaStream implements AutoCloseable {
             sortOptions = false,
             requiredOptionMarker = '*',
             abbreviateSynopsis = true)
-    private static class MangaStreamCallable implements Callable<Void> {
+    private static class MangaStreamCallable extends PageDownloadOptions implements Callable<Void> {
         @CommandLine.Parameters(index = "0", arity = "1", description = "url of first page of chapter")
         private String url;
 
@@ -49,24 +51,19 @@ public class MangaStream implements AutoCloseable {
         @CommandLine.Option(names = {"--original"}, description = "use original filename")
         private boolean useOriginalFilename = false;
 
-        @CommandLine.Option(names = {"-d", "--delay"}, description = "delay between each download in milliseconds (default: 1500)")
-        private long delay = 1500L;
+        @CommandLine.Option(names = {"--cbz"}, description = "write each chapter as a CBZ archive instead of a directory of images")
+        private boolean cbz = false;
 
-        @CommandLine.Option(names = {"-r", "--retries"}, description = "number of retries per download (default: 3)")
-        private int retries = 3;
-
-        @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "show this help message and exit")
-        private boolean helpRequested;
-
-        @CommandLine.Option(names = {"-V", "--version"}, versionHelp = true, description = "display version info")
-        private boolean versionInfoRequested;
+        MangaStreamCallable() {
+            super("mangastream");
+        }
 
         @Override
         public Void call() throws Exception {
             DownloadUtil downloadUtil = new DownloadUtil();
-            downloadUtil.setNumRetries(retries);
-            downloadUtil.setDelay(delay);
+            configure(downloadUtil);
             try (MangaStream obj = new MangaStream(outDir, downloadUtil, useOriginalFilename)) {
+                obj.setCbz(cbz);
                 obj.download(url);
             } catch (Exception e) {
                 throw e;
@@ -76,10 +73,12 @@ public class MangaStream implements AutoCloseable {
     }
 
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int PIPELINE_CAPACITY = 8;
 
     private File outDir;
     private DownloadUtil downloadUtil;
     private boolean useOriginalFilename;
+    private boolean cbz = false;
 
     public MangaStream(File outDir, DownloadUtil downloadUtil, boolean useOriginalFilename) {
         this.outDir = outDir;
@@ -98,29 +97,44 @@ public class MangaStream implements AutoCloseable {
         String baseurl = m.group(1);
         String name = m.group(2);
         String chapter = m.group(3);
-        int page = 1;
         File outChapterDir = Paths.get(outDir.toString(), name, chapter).toFile();
-        downloadRecursive(baseurl, chapter, outChapterDir, page);
+        if (downloadUtil.isChapterComplete(outChapterDir, cbz)) {
+            LOGGER.info("Skipping chapter {}, already downloaded", chapter);
+            return;
+        }
+        try (ChapterArchive archive = cbz ? new ChapterArchive(new File(outChapterDir.getPath() + ".cbz")) : null;
+             DownloadPipeline pipeline = new DownloadPipeline(downloadUtil, PIPELINE_CAPACITY)) {
+            downloadPages(baseurl, chapter, outChapterDir, archive, pipeline);
+            pipeline.finish();
+            if (archive != null)
+                archive.finish();
+        }
     }
 
-    public void downloadRecursive(String url, String chapter, File outChapterDir, int pageNumber) throws IOException, URISyntaxException {
+    /**
+     * Follows the page chain until it leaves the chapter, queueing each page's image on the pipeline.
+     *
+     * @param archive archive to add pages to, or null to save them in outChapterDir
+     */
+    public void downloadPages(String url, String chapter, File outChapterDir, ChapterArchive archive, DownloadPipeline pipeline) throws IOException, URISyntaxException {
+        int pageNumber = 1;
         Matcher m = VALID_URL.matcher(url);
-        if (m.matches() && m.group(3).equals(chapter)) {
+        while (m.matches() && m.group(3).equals(chapter)) {
             Document doc = downloadUtil.getDocument(new URL(url));
             Element elem = doc.selectFirst("img#manga-page");
             URL imgurl = new URL(elem.attr("abs:src"));
-            String nexturl = elem.parent().attr("abs:href");
 
-            if (useOriginalFilename) {
-                downloadUtil.downloadFileOriginalName(imgurl, outChapterDir, false);
-            } else {
-                String imgFilename = String.valueOf(pageNumber);
-                downloadUtil.downloadFileGuessExtension(imgurl, outChapterDir, imgFilename);
-            }
-            downloadRecursive(nexturl, chapter, outChapterDir, ++pageNumber);
+            pipeline.put(downloadUtil.pageTask(imgurl, outChapterDir, archive, pageNumber, useOriginalFilename));
+            url = elem.parent().attr("abs:href");
+            m = VALID_URL.matcher(url);
+            pageNumber++;
         }
     }
 
+    public void setCbz(boolean cbz) {
+        this.cbz = cbz;
+    }
+
     @Override
     public void close() throws Exception {
         downloadUtil.close();
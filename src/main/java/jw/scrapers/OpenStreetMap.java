@@ -1,7 +1,16 @@
 package jw.scrapers;
 
+import com.google.common.io.ByteStreams;
 import io.mikael.urlbuilder.UrlBuilder;
+import jw.util.BinaryFetcher;
+import jw.util.CompletionJournal;
+import jw.util.ContentAddressedStore;
 import jw.util.DownloadUtil;
+import jw.util.HostUnavailableException;
+import jw.util.HttpValidators;
+import jw.util.PackedTileStore;
+import jw.util.RetryPolicy;
+import jw.util.ValidatorStore;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import picocli.CommandLine;
@@ -10,15 +19,38 @@ import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class OpenStreetMap implements AutoCloseable {
 
     public static void main(String[] args) {
         CommandLine cmd = new CommandLine(new OSMCallable());
+        registerConverters(cmd);
+        try {
+            cmd.parseWithHandlers(
+                    new CommandLine.RunLast(),
+                    System.out, CommandLine.Help.Ansi.AUTO,
+                    new CommandLine.DefaultExceptionHandler(), args);
+        } catch (Exception e) {
+            Throwable cause = e.getCause();
+            LOGGER.error(cause);
+        }
+    }
+
+    static void registerConverters(CommandLine cmd) {
         cmd.registerConverter(Point2D.Double.class, value -> {
             String[] split = value.split(",");
             if (split.length != 2)
@@ -35,15 +67,6 @@ public class OpenStreetMap implements AutoCloseable {
             int y = Integer.parseInt(split[1]);
             return new Point(x, y);
         });
-        try {
-            cmd.parseWithHandlers(
-                    new CommandLine.RunLast(),
-                    System.out, CommandLine.Help.Ansi.AUTO,
-                    new CommandLine.DefaultExceptionHandler(), args);
-        } catch (Exception e) {
-            Throwable cause = e.getCause();
-            LOGGER.error(cause);
-        }
     }
 
     @CommandLine.Command(
@@ -56,14 +79,24 @@ public class OpenStreetMap implements AutoCloseable {
             footerHeading = "%nExamples%n",
             footer = "# Download all tiles from zoom 0-5%n" +
                     "$ for i in {0..5}; do osm -z ${i}; done%n%n" +
+                    "# Completed tiles are journaled, so re-running a command skips them.%n" +
                     "# Resume from {tileserver.url}/4/5/2.png inclusive%n" +
                     "$ osm -z 4 --resume 5,2%n%n" +
                     "# Limit to bounding box (top left latlon, bottom right latlon)%n" +
-                    "$ osm -z 13 --min 1.5,103.6 --max 1.2,104.1",
+                    "$ osm -z 13 --min 1.5,103.6 --max 1.2,104.1%n%n" +
+                    "# Fetch from all tile servers at once, 2 connections each%n" +
+                    "$ osm -z 14 --min 1.5,103.6 --max 1.2,104.1 -p -c 2%n%n" +
+                    "# Store tiles in a single packed archive, then export for localtiles.html%n" +
+                    "$ osm -z 14 --min 1.5,103.6 --max 1.2,104.1 --pack tiles.pack%n" +
+                    "$ osm -z 14 --pack tiles.pack --unpack -o tiles%n%n" +
+                    "# Re-download only tiles that changed upstream%n" +
+                    "$ osm -z 13 --min 1.5,103.6 --max 1.2,104.1 --refresh%n%n" +
+                    "# Store identical tiles (e.g. open ocean) only once%n" +
+                    "$ osm -z 8 --dedup",
             sortOptions = false,
             requiredOptionMarker = '*',
             abbreviateSynopsis = true)
-    private static class OSMCallable implements Callable<Void> {
+    private static class OSMCallable extends DownloadOptions implements Callable<Void> {
 
         @CommandLine.Option(names = {"-z", "--zoom"}, required = true, description = "required zoom level (0-19)")
         private int zoomLevel;
@@ -80,27 +113,58 @@ public class OpenStreetMap implements AutoCloseable {
         @CommandLine.Option(names = {"--resume"}, description = "resume download (inclusive)")
         private Point resumeXY;
 
-        @CommandLine.Option(names = {"-d", "--delay"}, description = "delay between each download in milliseconds (default: 1500)")
-        private long delay = 1500L;
+        @CommandLine.Option(names = {"-p", "--parallel"}, description = "download tiles in parallel across all tile servers")
+        private boolean parallel = false;
+
+        @CommandLine.Option(names = {"-c", "--connections"}, description = "max connections per tile server in parallel mode (default: 2)")
+        private int connections = 2;
 
-        @CommandLine.Option(names = {"-r", "--retries"}, description = "number of retries per download (default: 3)")
-        private int retries = 3;
+        @CommandLine.Option(names = {"--pack"}, description = "append tiles to a packed archive instead of one file per tile")
+        private File packFile;
 
-        @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "show this help message and exit")
-        private boolean helpRequested;
+        @CommandLine.Option(names = {"--unpack"}, description = "export tiles at zoom level from packed archive to output directory")
+        private boolean unpack = false;
 
-        @CommandLine.Option(names = {"-V", "--version"}, versionHelp = true, description = "display version info")
-        private boolean versionInfoRequested;
+        @CommandLine.Option(names = {"--refresh"}, description = "only re-download tiles that changed since the last run")
+        private boolean refresh = false;
+
+        @CommandLine.Option(names = {"--dedup"}, description = "store identical tiles once, as hardlinks or packed archive references")
+        private boolean dedup = false;
+
+        OSMCallable() {
+            super("osm");
+        }
+
+        @Override
+        void configureScraper(DownloadUtil downloadUtil) {
+            downloadUtil.setCircuitFailFast(true);
+            if (parallel) {
+                downloadUtil.setMaxConnectionsPerHost(connections);
+                if (downloadUtil.getThreads() <= 1)
+                    downloadUtil.setThreads(connections * TILE_SERVERS.length);
+            }
+        }
 
         @Override
         public Void call() throws Exception {
             if (minLatLon != null ^ maxLatLon != null) {
                 throw new IllegalArgumentException("min and max have to be specified together");
             }
+            if (unpack) {
+                if (packFile == null)
+                    throw new IllegalArgumentException("unpack requires a packed archive");
+                try (PackedTileStore store = new PackedTileStore(packFile)) {
+                    int count = store.export(zoomLevel, outDir);
+                    LOGGER.info("Exported {} tiles to {}", count, outDir);
+                }
+                return null;
+            }
             DownloadUtil downloadUtil = new DownloadUtil();
-            downloadUtil.setNumRetries(retries);
-            downloadUtil.setDelay(delay);
+            configure(downloadUtil);
             try (OpenStreetMap osm = new OpenStreetMap(zoomLevel, outDir, downloadUtil)) {
+                osm.setParallel(parallel);
+                osm.openStores(packFile, dedup);
+                osm.setRefresh(refresh);
                 if (minLatLon != null && maxLatLon != null) {
                     osm.setMinMaxLatLon(minLatLon, maxLatLon);
                     osm.downloadBoundingBoxTiles(Optional.ofNullable(resumeXY));
@@ -122,12 +186,21 @@ public class OpenStreetMap implements AutoCloseable {
             "http://b.tile.openstreetmap.org",
             "http://c.tile.openstreetmap.org",};
 
+    private static final int LEAF_TILES = 16;
+
     private String previousTileServer = TILE_SERVERS[0];
+    private final AtomicInteger nextTileServer = new AtomicInteger();
+    private boolean parallel = false;
     private int zoom;
     private Point2D.Double minLatLon = new Point2D.Double(0d, 0d);
     private Point2D.Double maxLatLon = new Point2D.Double(0d, 0d);
     private File outDir;
     private DownloadUtil downloadUtil;
+    private PackedTileStore tileStore;
+    private ContentAddressedStore contentAddressedStore;
+    private ValidatorStore validatorStore;
+    private CompletionJournal journal;
+    private boolean refresh = false;
 
     public OpenStreetMap(int zoom, File outDir, DownloadUtil downloadUtil) {
         setZoom(zoom);
@@ -153,6 +226,13 @@ public class OpenStreetMap implements AutoCloseable {
                         (min.x >= max.x && (max.x >= resume.x || resume.x >= min.x)))))
             throw new IllegalArgumentException("invalid min/max/resume range");
 
+        if (parallel) {
+            if (!resume.equals(min))
+                throw new IllegalArgumentException("resume is not supported in parallel mode");
+            downloadTilesParallel(min, max);
+            return;
+        }
+
         int startX = resume.x;
         int startY = resume.y;
         int x = startX - 1;
@@ -160,22 +240,197 @@ public class OpenStreetMap implements AutoCloseable {
             x = (x + 1) % (1 << zoom);
             for (int y = startY; y <= max.y; y++) {
                 startY = min.y;
-                URL url = UrlBuilder.fromString(getRandomTileServer())
-                        .withPath(String.format("%d/%d/%d.png", zoom, x, y))
-                        .toUrl();
-                downloadUtil.downloadFileOriginalName(url, outDir, true);
+                int tileX = x;
+                int tileY = y;
+                downloadUtil.submit(() -> downloadTile(tileX, tileY));
             }
         } while (x != max.x);
+        downloadUtil.awaitCompletion();
     }
 
-    private String getRandomTileServer() {
-        String tileServer;
-        do {
-            int idx = RANDOM.nextInt(TILE_SERVERS.length);
-            tileServer = TILE_SERVERS[idx];
-        } while (tileServer.equals(previousTileServer));
-        previousTileServer = tileServer;
-        return tileServer;
+    private void downloadTilesParallel(Point min, Point max) throws IOException {
+        int n = 1 << zoom;
+        int width = (max.x - min.x + n) % n + 1;
+        int height = max.y - min.y + 1;
+        ForkJoinPool pool = new ForkJoinPool(downloadUtil.getThreads());
+        try {
+            pool.invoke(new TileRangeTask(min.x, min.y, width, height));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Quadtree split of a tile range, so idle workers can steal unstarted quadrants.
+     * x wraps around the antimeridian.
+     */
+    private class TileRangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+
+        TileRangeTask(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        protected void compute() {
+            if (width * (long) height <= LEAF_TILES) {
+                for (int dx = 0; dx < width; dx++) {
+                    for (int dy = 0; dy < height; dy++) {
+                        try {
+                            downloadTile((x + dx) % (1 << zoom), y + dy);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                }
+                return;
+            }
+            int w1 = (width + 1) / 2;
+            int h1 = (height + 1) / 2;
+            int w2 = width - w1;
+            int h2 = height - h1;
+            int x2 = (x + w1) % (1 << zoom);
+            int y2 = y + h1;
+            invokeAll(new TileRangeTask(x, y, w1, h1),
+                    new TileRangeTask(x2, y, w2, h1),
+                    new TileRangeTask(x, y2, w1, h2),
+                    new TileRangeTask(x2, y2, w2, h2));
+        }
+    }
+
+    /**
+     * Downloads a tile from an available tile server, moving it to another
+     * server when one keeps failing or has its circuit open.
+     */
+    private void downloadTile(int x, int y) throws IOException {
+        Set<String> excluded = new HashSet<>();
+        IOException failure = null;
+        int failures = 0;
+        while (failures < TILE_SERVERS.length * 2) {
+            String tileServer = parallel ? getLeastLoadedTileServer(excluded) : getRandomTileServer(excluded);
+            if (tileServer == null) {
+                excluded.clear();
+                awaitTileServer();
+                continue;
+            }
+            try {
+                downloadTile(tileServer, x, y);
+                return;
+            } catch (IOException e) {
+                excluded.add(tileServer);
+                if (e instanceof HostUnavailableException && e.getCause() == null)
+                    continue; // refused without sending, so not a failure of this tile
+                if (!(e instanceof HostUnavailableException) && !RetryPolicy.isRetriable(e))
+                    throw e;
+                LOGGER.warn("Moving tile {}/{}/{} off {}", zoom, x, y, tileServer);
+                failure = e;
+                failures++;
+            }
+        }
+        throw failure;
+    }
+
+    private void awaitTileServer() throws IOException {
+        long wait = Long.MAX_VALUE;
+        for (String tileServer : TILE_SERVERS)
+            wait = Math.min(wait, downloadUtil.getHostUnavailableMillis(URI.create(tileServer).getHost()));
+        try {
+            Thread.sleep(Math.max(100L, Math.min(wait, 1000L)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private void downloadTile(String tileServer, int x, int y) throws IOException {
+        long tileKey = (long) x * (1 << zoom) + y;
+        if (!refresh && journal != null && journal.isDone(tileKey))
+            return;
+        URL url = tileUrl(tileServer, zoom, x, y);
+        String key = String.format("%d/%d/%d", zoom, x, y);
+        HttpValidators validators = refresh && validatorStore != null ? validatorStore.get(key) : null;
+        try (BinaryFetcher.Response response = downloadUtil.openIfModified(url, validators)) {
+            if (response == null) {
+                LOGGER.debug("Not modified {}", key);
+                if (journal != null)
+                    journal.markDone(tileKey);
+                return;
+            }
+            if (tileStore != null) {
+                try (InputStream is = response.getContent()) {
+                    tileStore.put(zoom, x, y, ByteStreams.toByteArray(is));
+                }
+            } else if (contentAddressedStore != null) {
+                try (InputStream is = response.getContent()) {
+                    contentAddressedStore.write(is, new File(outDir, key + ".png"));
+                }
+            } else {
+                // replaces rather than writes through a tile hardlinked by an earlier --dedup run
+                response.transferTo(new File(outDir, key + ".png"));
+            }
+            if (validatorStore != null)
+                validatorStore.put(key, HttpValidators.of(response));
+        }
+        if (journal != null)
+            journal.markDone(tileKey);
+    }
+
+    /**
+     * Round robin over available tile servers, preferring the one with the most free connections.
+     *
+     * @return tile server, or null if all are excluded or unavailable
+     */
+    private String getLeastLoadedTileServer(Set<String> excluded) {
+        int start = nextTileServer.getAndIncrement() & Integer.MAX_VALUE;
+        String best = null;
+        int bestFree = -1;
+        for (int i = 0; i < TILE_SERVERS.length; i++) {
+            String tileServer = TILE_SERVERS[(start + i) % TILE_SERVERS.length];
+            String host = URI.create(tileServer).getHost();
+            if (excluded.contains(tileServer) || !downloadUtil.isHostAvailable(host))
+                continue;
+            int free = downloadUtil.availableConnections(host);
+            if (free > bestFree) {
+                best = tileServer;
+                bestFree = free;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Random available tile server, other than the previous one where possible.
+     *
+     * @return tile server, or null if all are excluded or unavailable
+     */
+    private synchronized String getRandomTileServer(Set<String> excluded) {
+        List<String> candidates = new ArrayList<>();
+        for (String tileServer : TILE_SERVERS) {
+            if (!excluded.contains(tileServer) && downloadUtil.isHostAvailable(URI.create(tileServer).getHost()))
+                candidates.add(tileServer);
+        }
+        if (candidates.size() > 1)
+            candidates.remove(previousTileServer);
+        if (candidates.isEmpty())
+            return null;
+        previousTileServer = candidates.get(RANDOM.nextInt(candidates.size()));
+        return previousTileServer;
+    }
+
+    public static URL tileUrl(String tileServer, int zoom, int x, int y) {
+        return UrlBuilder.fromString(tileServer)
+                .withPath(String.format("%d/%d/%d.png", zoom, x, y))
+                .toUrl();
     }
 
     public static Point latLonToTileIndex(final int zoom, final double lat, final double lon) {
@@ -195,6 +450,41 @@ public class OpenStreetMap implements AutoCloseable {
     @Override
     public void close() throws Exception {
         downloadUtil.close();
+        closeStores();
+    }
+
+    /**
+     * Stores tiles in the packed archive if given, else as files under the output
+     * directory, with validators and a completion journal kept beside them.
+     */
+    public void openStores(File packFile, boolean dedup) throws IOException {
+        if (packFile != null) {
+            PackedTileStore tileStore = new PackedTileStore(packFile);
+            tileStore.setDeduplicate(dedup);
+            setTileStore(tileStore);
+        } else if (dedup) {
+            setContentAddressedStore(new ContentAddressedStore(new File(outDir, ".objects")));
+        }
+        File validatorFile = packFile != null ?
+                new File(packFile.getPath() + ".validators") :
+                new File(outDir, ".validators");
+        setValidatorStore(new ValidatorStore(validatorFile));
+        File journalFile = packFile != null ?
+                new File(packFile.getPath() + ".z" + zoom + ".journal") :
+                new File(outDir, ".journal.z" + zoom);
+        setJournal(new CompletionJournal(journalFile));
+    }
+
+    /**
+     * Closes the stores but not the {@link DownloadUtil}, which may outlive this instance.
+     */
+    public void closeStores() throws IOException {
+        if (tileStore != null)
+            tileStore.close();
+        if (validatorStore != null)
+            validatorStore.close();
+        if (journal != null)
+            journal.close();
     }
 
     public void setZoom(int zoom) {
@@ -203,6 +493,30 @@ public class OpenStreetMap implements AutoCloseable {
         this.zoom = zoom;
     }
 
+    public void setContentAddressedStore(ContentAddressedStore contentAddressedStore) {
+        this.contentAddressedStore = contentAddressedStore;
+    }
+
+    public void setJournal(CompletionJournal journal) {
+        this.journal = journal;
+    }
+
+    public void setValidatorStore(ValidatorStore validatorStore) {
+        this.validatorStore = validatorStore;
+    }
+
+    public void setRefresh(boolean refresh) {
+        this.refresh = refresh;
+    }
+
+    public void setTileStore(PackedTileStore tileStore) {
+        this.tileStore = tileStore;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
     public void setMinMaxLatLon(Point2D.Double minLatLon, Point2D.Double maxLatLon) {
         this.minLatLon = minLatLon;
         this.maxLatLon = maxLatLon;
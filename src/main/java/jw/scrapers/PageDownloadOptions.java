@@ -0,0 +1,37 @@
+package jw.scrapers;
+
+import jw.util.DownloadUtil;
+import jw.util.HttpCache;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DownloadOptions} of the commands that crawl html pages into an output directory.
+ */
+abstract class PageDownloadOptions extends DownloadOptions {
+
+    @CommandLine.Option(names = {"--skip-existing"}, description = "skip files already downloaded completely by an earlier run")
+    private boolean skipExisting = false;
+
+    @CommandLine.Option(names = {"--cache"}, description = "directory to cache html pages in")
+    private File cacheDir;
+
+    @CommandLine.Option(names = {"--cache-size"}, description = "max size of html cache in megabytes (default: 100)")
+    private long cacheSize = 100L;
+
+    PageDownloadOptions(String scraper) {
+        super(scraper);
+    }
+
+    @Override
+    void configure(DownloadUtil downloadUtil) throws IOException {
+        super.configure(downloadUtil);
+        downloadUtil.setSkipExisting(skipExisting);
+        if (cacheDir != null)
+            downloadUtil.setHttpCache(new HttpCache(cacheDir, cacheSize << 20, TimeUnit.DAYS.toMillis(1)));
+    }
+
+}
@@ -3,7 +3,9 @@ package jw.scrapers;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.WebClient;
 import io.mikael.urlbuilder.UrlBuilder;
+import jw.util.ChapterArchive;
 import jw.util.DownloadUtil;
+import jw.util.SessionStore;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jsoup.nodes.Document;
@@ -14,6 +16,8 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -40,7 +44,7 @@ public class ReadComicOnlineTo implements AutoCloseable {
             sortOptions = false,
             requiredOptionMarker = '*',
             abbreviateSynopsis = true)
-    private static class ReadComicOnlineToCallable implements Callable<Void> {
+    private static class ReadComicOnlineToCallable extends DownloadOptions implements Callable<Void> {
         @CommandLine.Parameters(index = "0", arity = "1", description = "url of first page of chapter")
         private String url;
 
@@ -50,24 +54,31 @@ public class ReadComicOnlineTo implements AutoCloseable {
         @CommandLine.Option(names = {"--original"}, description = "use original filename")
         private boolean useOriginalFilename = false;
 
-        @CommandLine.Option(names = {"-d", "--delay"}, description = "delay between each download in milliseconds (default: 1500)")
-        private long delay = 1500L;
+        @CommandLine.Option(names = {"--session"}, description = "file to save the Cloudflare session in (default: ~/.scrapers/readcomiconlineto.session)")
+        private File sessionFile = new File(System.getProperty("user.home"), ".scrapers/readcomiconlineto.session");
 
-        @CommandLine.Option(names = {"-r", "--retries"}, description = "number of retries per download (default: 3)")
-        private int retries = 3;
+        @CommandLine.Option(names = {"--cbz"}, description = "write each chapter as a CBZ archive instead of a directory of images")
+        private boolean cbz = false;
 
-        @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "show this help message and exit")
-        private boolean helpRequested;
+        @CommandLine.Option(names = {"--skip-existing"}, description = "skip files already downloaded completely by an earlier run")
+        private boolean skipExisting = false;
 
-        @CommandLine.Option(names = {"-V", "--version"}, versionHelp = true, description = "display version info")
-        private boolean versionInfoRequested;
+        ReadComicOnlineToCallable() {
+            super("readcomiconlineto");
+        }
+
+        @Override
+        void configureScraper(DownloadUtil downloadUtil) {
+            downloadUtil.setSkipExisting(skipExisting);
+        }
 
         @Override
         public Void call() throws Exception {
             DownloadUtil downloadUtil = new DownloadUtil();
-            downloadUtil.setNumRetries(retries);
-            downloadUtil.setDelay(delay);
+            configure(downloadUtil);
             try (ReadComicOnlineTo obj = new ReadComicOnlineTo(outDir, downloadUtil, useOriginalFilename)) {
+                obj.setSessionStore(new SessionStore(sessionFile, "cf_clearance"));
+                obj.setCbz(cbz);
                 obj.download(url);
             } catch (Exception e) {
                 throw e;
@@ -77,10 +88,14 @@ public class ReadComicOnlineTo implements AutoCloseable {
     }
 
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final Pattern LST_IMAGES = Pattern.compile("lstImages.push\\(\"([^\"]+)\"\\);");
 
     private File outDir;
     private DownloadUtil downloadUtil;
     private boolean useOriginalFilename;
+    private boolean cbz = false;
+    private SessionStore sessionStore;
+    private boolean sessionRestored = false;
 
     public ReadComicOnlineTo(File outDir, DownloadUtil downloadUtil, boolean useOriginalFilename) {
         this.outDir = outDir;
@@ -100,6 +115,10 @@ public class ReadComicOnlineTo implements AutoCloseable {
         String name = m.group(1);
         String chapter = m.group(2);
         File outChapterDir = Paths.get(outDir.toString(), name, chapter).toFile();
+        if (downloadUtil.isChapterComplete(outChapterDir, cbz)) {
+            LOGGER.info("Skipping chapter {}, already downloaded", chapter);
+            return;
+        }
 
         UrlBuilder builder = UrlBuilder.fromString(url)
                 .setParameter("quality", "hq")
@@ -107,10 +126,56 @@ public class ReadComicOnlineTo implements AutoCloseable {
         url = builder.toString();
 
         WebClient webClient = downloadUtil.getWebClient();
-        webClient.getOptions().setJavaScriptEnabled(true);
         webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
         webClient.getOptions().setRedirectEnabled(true);
-        downloadUtil.getPage(new URL(url));
+
+        Page page = null;
+        if (sessionStore != null && (sessionRestored || sessionStore.restore(webClient))) {
+            sessionRestored = true;
+            webClient.getOptions().setJavaScriptEnabled(false);
+            page = downloadUtil.getPage(new URL(url));
+            if (page.getWebResponse().getStatusCode() != 200) {
+                LOGGER.info("Saved session rejected");
+                sessionRestored = false;
+                page = null;
+            }
+        }
+        if (page == null) {
+            page = solveChallenge(webClient, new URL(url));
+            if (sessionStore != null) {
+                sessionStore.save(webClient);
+                sessionRestored = true;
+            }
+        }
+
+        Document doc = DownloadUtil.getDocument(page);
+
+        try (ChapterArchive archive = cbz ? new ChapterArchive(new File(outChapterDir.getPath() + ".cbz")) : null) {
+            int pageNumber = 1;
+            for (String image : ReadComicOnlineTo.getImageUrls(doc.toString())) {
+                URL imgurl = new URL(image);
+                downloadUtil.submit(downloadUtil.pageTask(imgurl, outChapterDir, archive, pageNumber++, useOriginalFilename));
+            }
+            downloadUtil.awaitCompletion();
+            if (archive != null)
+                archive.finish();
+        }
+    }
+
+    /**
+     * @return image urls pushed to lstImages by the chapter page's script, in page order
+     */
+    public static List<String> getImageUrls(String html) {
+        List<String> urls = new ArrayList<>();
+        Matcher m = LST_IMAGES.matcher(html);
+        while (m.find())
+            urls.add(m.group(1));
+        return urls;
+    }
+
+    private Page solveChallenge(WebClient webClient, URL url) throws IOException {
+        webClient.getOptions().setJavaScriptEnabled(true);
+        downloadUtil.getPage(url);
 
         Page page;
         int statusCode;
@@ -124,21 +189,15 @@ public class ReadComicOnlineTo implements AutoCloseable {
             page = webClient.getCurrentWindow().getEnclosedPage();
             statusCode = page.getWebResponse().getStatusCode();
         } while (statusCode != 200);
+        return page;
+    }
 
-        Document doc = downloadUtil.getDocument(page);
-
-        Pattern p = Pattern.compile("lstImages.push\\(\"([^\"]+)\"\\);");
-        m = p.matcher(doc.toString());
-        int pageNumber = 1;
-        while (m.find()) {
-            URL imgurl = new URL(m.group(1));
-            if (useOriginalFilename) {
-                downloadUtil.downloadFileOriginalName(imgurl, outChapterDir, false);
-            } else {
-                String imgFilename = String.valueOf(pageNumber++);
-                downloadUtil.downloadFileGuessExtension(imgurl, outChapterDir, imgFilename);
-            }
-        }
+    public void setSessionStore(SessionStore sessionStore) {
+        this.sessionStore = sessionStore;
+    }
+
+    public void setCbz(boolean cbz) {
+        this.cbz = cbz;
     }
 
     @Override
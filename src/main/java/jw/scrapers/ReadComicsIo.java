@@ -1,5 +1,6 @@
 package jw.scrapers;
 
+import jw.util.ChapterArchive;
 import jw.util.DownloadUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -39,7 +40,7 @@ public class ReadComicsIo implements AutoCloseable {
             sortOptions = false,
             requiredOptionMarker = '*',
             abbreviateSynopsis = true)
-    private static class ReadComicsIoCallable implements Callable<Void> {
+    private static class ReadComicsIoCallable extends PageDownloadOptions implements Callable<Void> {
         @CommandLine.Parameters(index = "0", arity = "1", description = "url of first page of chapter")
         private String url;
 
@@ -49,24 +50,19 @@ public class ReadComicsIo implements AutoCloseable {
         @CommandLine.Option(names = {"--original"}, description = "use original filename")
         private boolean useOriginalFilename = false;
 
-        @CommandLine.Option(names = {"-d", "--delay"}, description = "delay between each download in milliseconds (default: 1500)")
-        private long delay = 1500L;
+        @CommandLine.Option(names = {"--cbz"}, description = "write each chapter as a CBZ archive instead of a directory of images")
+        private boolean cbz = false;
 
-        @CommandLine.Option(names = {"-r", "--retries"}, description = "number of retries per download (default: 3)")
-        private int retries = 3;
-
-        @CommandLine.Option(names = {"-h", "--help"}, usageHelp = true, description = "show this help message and exit")
-        private boolean helpRequested;
-
-        @CommandLine.Option(names = {"-V", "--version"}, versionHelp = true, description = "display version info")
-        private boolean versionInfoRequested;
+        ReadComicsIoCallable() {
+            super("readcomicsio");
+        }
 
         @Override
         public Void call() throws Exception {
             DownloadUtil downloadUtil = new DownloadUtil();
-            downloadUtil.setNumRetries(retries);
-            downloadUtil.setDelay(delay);
+            configure(downloadUtil);
             try (ReadComicsIo obj = new ReadComicsIo(outDir, downloadUtil, useOriginalFilename)) {
+                obj.setCbz(cbz);
                 obj.download(url);
             } catch (Exception e) {
                 throw e;
@@ -80,6 +76,7 @@ public class ReadComicsIo implements AutoCloseable {
     private File outDir;
     private DownloadUtil downloadUtil;
     private boolean useOriginalFilename;
+    private boolean cbz = false;
 
     public ReadComicsIo(File outDir, DownloadUtil downloadUtil, boolean useOriginalFilename) {
         this.outDir = outDir;
@@ -101,21 +98,29 @@ public class ReadComicsIo implements AutoCloseable {
         String chapter = m.group(3);
         url = baseurl + "/full";
         File outChapterDir = Paths.get(outDir.toString(), name, chapter).toFile();
+        if (downloadUtil.isChapterComplete(outChapterDir, cbz)) {
+            LOGGER.info("Skipping chapter {}, already downloaded", chapter);
+            return;
+        }
 
         Document document = downloadUtil.getDocument(new URL(url));
         Elements elems = document.select("div.chapter-container").select("img");
-        int pageNumber = 1;
-        for (Element elem : elems) {
-            URL imgurl = new URL(elem.attr("abs:src"));
-            if (useOriginalFilename) {
-                downloadUtil.downloadFileOriginalName(imgurl, outChapterDir, false);
-            } else {
-                String imgFilename = String.valueOf(pageNumber++);
-                downloadUtil.downloadFileGuessExtension(imgurl, outChapterDir, imgFilename);
+        try (ChapterArchive archive = cbz ? new ChapterArchive(new File(outChapterDir.getPath() + ".cbz")) : null) {
+            int pageNumber = 1;
+            for (Element elem : elems) {
+                URL imgurl = new URL(elem.attr("abs:src"));
+                downloadUtil.submit(downloadUtil.pageTask(imgurl, outChapterDir, archive, pageNumber++, useOriginalFilename));
             }
+            downloadUtil.awaitCompletion();
+            if (archive != null)
+                archive.finish();
         }
     }
 
+    public void setCbz(boolean cbz) {
+        this.cbz = cbz;
+    }
+
     @Override
     public void close() throws Exception {
         downloadUtil.close();
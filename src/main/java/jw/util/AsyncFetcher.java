@@ -0,0 +1,304 @@
+package jw.util;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import com.google.common.io.Files;
+import org.apache.http.entity.ContentType;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Non-blocking counterpart of {@link BinaryFetcher}: requests are multiplexed over a
+ * few selector and worker threads instead of holding a thread per transfer, so
+ * thousands can be in flight at once. Cookies and user agent are taken from, and
+ * cookies written back to, the session of the given {@link WebClient}.
+ * <p>
+ * Futures complete on the client's threads, so heavy stages should be chained
+ * with the {@code *Async} methods of {@link CompletableFuture}.
+ */
+public class AsyncFetcher implements AutoCloseable {
+
+    private static final int SELECTORS = 1;
+    private static final int MAX_THREADS = 8;
+    private static final int MAX_BUFFERED = 32 * 1024 * 1024;
+
+    private final WebClient webClient;
+    private final RequestMetrics metrics;
+    private final HttpClient httpClient;
+
+    public AsyncFetcher(WebClient webClient, RequestMetrics metrics) throws IOException {
+        this.webClient = webClient;
+        this.metrics = metrics;
+        // Jetty 9.4 does not verify hostnames unless told to, unlike the blocking HttpClient
+        SslContextFactory sslContextFactory = new SslContextFactory();
+        sslContextFactory.setEndpointIdentificationAlgorithm("HTTPS");
+        httpClient = new HttpClient(new HttpClientTransportOverHTTP(SELECTORS), sslContextFactory);
+        QueuedThreadPool threadPool = new QueuedThreadPool(MAX_THREADS, SELECTORS + 1);
+        threadPool.setName("async-fetcher");
+        threadPool.setDaemon(true);
+        httpClient.setExecutor(threadPool);
+        httpClient.setCookieStore(new HttpCookieStore.Empty());
+        httpClient.setUserAgentField(new HttpField(HttpHeader.USER_AGENT, webClient.getBrowserVersion().getUserAgent()));
+        httpClient.setConnectTimeout(webClient.getOptions().getTimeout());
+        httpClient.setIdleTimeout(webClient.getOptions().getTimeout());
+        httpClient.setMaxConnectionsPerDestination(16);
+        try {
+            httpClient.start();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Buffers the whole body, up to 32 MB.
+     *
+     * @return future failing with {@link HttpStatusException} on a non-2xx status
+     */
+    public CompletableFuture<Body> get(URL url) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        return send(url, new Sink<Body>() {
+            @Override
+            void write(ByteBuffer content) throws IOException {
+                if (bytes.size() + content.remaining() > MAX_BUFFERED)
+                    throw new IOException(url + ": body larger than " + MAX_BUFFERED + " bytes");
+                byte[] chunk = new byte[content.remaining()];
+                content.get(chunk);
+                bytes.write(chunk, 0, chunk.length);
+            }
+
+            @Override
+            Body complete(Response response) {
+                return new Body(bytes.toByteArray(), response.getHeaders().get(HttpHeader.CONTENT_TYPE),
+                        response.getHeaders().get(HttpHeader.CACHE_CONTROL));
+            }
+        });
+    }
+
+    /**
+     * Streams the body of url into file as it arrives, replacing its contents.
+     *
+     * @return future of the number of bytes written
+     */
+    public CompletableFuture<Long> download(URL url, File file) {
+        return send(url, new Sink<Long>() {
+            private FileChannel out;
+            private long written = 0L;
+
+            @Override
+            void write(ByteBuffer content) throws IOException {
+                if (out == null) {
+                    Files.createParentDirs(file);
+                    out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                }
+                while (content.hasRemaining())
+                    written += out.write(content);
+            }
+
+            @Override
+            Long complete(Response response) throws IOException {
+                if (out == null)
+                    write(ByteBuffer.allocate(0));
+                return written;
+            }
+
+            @Override
+            void close() throws IOException {
+                if (out != null)
+                    out.close();
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> send(URL url, Sink<T> sink) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        String host = url.getHost();
+        Request request;
+        try {
+            request = httpClient.newRequest(url.toURI()).header(HttpHeader.ACCEPT, "*/*");
+        } catch (URISyntaxException | RuntimeException e) {
+            future.completeExceptionally(new IOException(e));
+            return future;
+        }
+        String cookies = cookieHeader(url);
+        if (!cookies.isEmpty())
+            request.header(HttpHeader.COOKIE, cookies);
+
+        long start = System.nanoTime();
+        request.send(new Response.Listener.Adapter() {
+            private long ttfb;
+            private long bytes = 0L;
+
+            @Override
+            public void onHeaders(Response response) {
+                ttfb = System.nanoTime() - start;
+                int status = response.getStatus();
+                metrics.recordStatus(host, status);
+                storeCookies(url, response);
+                if (status < 200 || status >= 300)
+                    response.abort(new HttpStatusException(status, url + ": " + response.getReason(),
+                            response.getHeaders().get(HttpHeader.RETRY_AFTER)));
+            }
+
+            @Override
+            public void onContent(Response response, ByteBuffer content) {
+                bytes += content.remaining();
+                try {
+                    sink.write(content);
+                } catch (IOException e) {
+                    response.abort(e);
+                }
+            }
+
+            @Override
+            public void onComplete(Result result) {
+                try {
+                    if (result.isFailed()) {
+                        sink.close();
+                        future.completeExceptionally(toException(result.getFailure()));
+                        return;
+                    }
+                    T value = sink.complete(result.getResponse());
+                    sink.close();
+                    metrics.recordResponse(host, ttfb, System.nanoTime() - start, bytes);
+                    future.complete(value);
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Maps Jetty failures onto the exceptions {@link RetryPolicy} classifies.
+     */
+    private static Throwable toException(Throwable failure) {
+        if (failure instanceof TimeoutException) {
+            SocketTimeoutException e = new SocketTimeoutException(failure.getMessage());
+            e.initCause(failure);
+            return e;
+        }
+        if (failure instanceof Exception && !(failure instanceof IOException))
+            return new IOException(failure);
+        return failure;
+    }
+
+    private String cookieHeader(URL url) {
+        StringBuilder sb = new StringBuilder();
+        String host = url.getHost();
+        String path = url.getPath().isEmpty() ? "/" : url.getPath();
+        Date now = new Date();
+        for (Cookie cookie : webClient.getCookieManager().getCookies()) {
+            String domain = cookie.getDomain() == null ? host : cookie.getDomain().replaceFirst("^\\.", "");
+            if (!host.equals(domain) && !host.endsWith("." + domain))
+                continue;
+            if (cookie.getPath() != null && !path.startsWith(cookie.getPath()))
+                continue;
+            if (cookie.isSecure() && !"https".equals(url.getProtocol()))
+                continue;
+            if (cookie.getExpires() != null && cookie.getExpires().before(now))
+                continue;
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append(cookie.getName()).append('=').append(cookie.getValue());
+        }
+        return sb.toString();
+    }
+
+    private void storeCookies(URL url, Response response) {
+        for (String header : response.getHeaders().getValuesList(HttpHeader.SET_COOKIE)) {
+            try {
+                for (HttpCookie cookie : HttpCookie.parse(header)) {
+                    Date expires = cookie.getMaxAge() < 0L ? null : new Date(System.currentTimeMillis() + cookie.getMaxAge() * 1000L);
+                    webClient.getCookieManager().addCookie(new Cookie(
+                            cookie.getDomain() == null ? url.getHost() : cookie.getDomain(), cookie.getName(),
+                            cookie.getValue(), cookie.getPath() == null ? "/" : cookie.getPath(), expires, cookie.getSecure()));
+                }
+            } catch (IllegalArgumentException e) {
+                // ignore malformed cookie
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            httpClient.stop();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private abstract static class Sink<T> {
+        abstract void write(ByteBuffer content) throws IOException;
+
+        abstract T complete(Response response) throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    /**
+     * Buffered response body.
+     */
+    public static class Body {
+        private final byte[] bytes;
+        private final String contentType;
+        private final String cacheControl;
+
+        Body(byte[] bytes, String contentType, String cacheControl) {
+            this.bytes = bytes;
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Decodes the body using the charset declared in Content-Type, or UTF-8.
+         */
+        public String getContentAsString() {
+            Charset charset = null;
+            if (contentType != null) {
+                try {
+                    charset = ContentType.parse(contentType).getCharset();
+                } catch (RuntimeException e) {
+                    // fall back to UTF-8
+                }
+            }
+            return new String(bytes, charset != null ? charset : StandardCharsets.UTF_8);
+        }
+
+        public String getCacheControl() {
+            return cacheControl;
+        }
+    }
+
+}
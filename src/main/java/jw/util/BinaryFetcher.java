@@ -0,0 +1,397 @@
+package jw.util;
+
+import com.gargoylesoftware.htmlunit.ProxyConfig;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebClientOptions;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.Files;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.TrustAllStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Lightweight GET for binary assets that streams the body straight to disk,
+ * skipping HtmlUnit page construction and its buffering of the whole response.
+ * Cookies and user agent are taken from, and cookies written back to, the
+ * session of the given {@link WebClient}, which also supplies the additional
+ * request headers, proxy and SSL settings.
+ */
+public class BinaryFetcher implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Field REQUEST_HEADERS = requestHeadersField();
+
+    private final WebClient webClient;
+    private final CloseableHttpClient httpClient;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE);
+    private final RequestMetrics metrics;
+
+    public BinaryFetcher(WebClient webClient) {
+        this(webClient, new RequestMetrics());
+    }
+
+    public BinaryFetcher(WebClient webClient, RequestMetrics metrics) {
+        this.webClient = webClient;
+        this.metrics = metrics;
+        WebClientOptions options = webClient.getOptions();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", plainSocketFactory(options.getProxyConfig()))
+                        .register("https", sslSocketFactory(options))
+                        .build());
+        connectionManager.setMaxTotal(64);
+        connectionManager.setDefaultMaxPerRoute(16);
+        int timeout = options.getTimeout();
+        RequestConfig config = RequestConfig.custom()
+                .setCookieSpec(CookieSpecs.STANDARD)
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .setUserAgent(webClient.getBrowserVersion().getUserAgent());
+        ProxyConfig proxy = options.getProxyConfig();
+        if (proxy.getProxyHost() != null && !proxy.isSocksProxy())
+            builder.setProxy(new HttpHost(proxy.getProxyHost(), proxy.getProxyPort()));
+        httpClient = builder.build();
+    }
+
+    private static PlainConnectionSocketFactory plainSocketFactory(ProxyConfig proxy) {
+        Proxy socks = socksProxy(proxy);
+        if (socks == null)
+            return PlainConnectionSocketFactory.getSocketFactory();
+        return new PlainConnectionSocketFactory() {
+            @Override
+            public Socket createSocket(HttpContext context) {
+                return new Socket(socks);
+            }
+        };
+    }
+
+    /**
+     * Trusts any certificate and host name if the WebClient uses insecure SSL, as HtmlUnit does.
+     */
+    private static SSLConnectionSocketFactory sslSocketFactory(WebClientOptions options) {
+        SSLContextBuilder context = SSLContexts.custom();
+        try {
+            if (options.isUseInsecureSSL())
+                context.loadTrustMaterial(TrustAllStrategy.INSTANCE);
+            Proxy socks = socksProxy(options.getProxyConfig());
+            return new SSLConnectionSocketFactory(context.build(), options.isUseInsecureSSL() ?
+                    NoopHostnameVerifier.INSTANCE : SSLConnectionSocketFactory.getDefaultHostnameVerifier()) {
+                @Override
+                public Socket createSocket(HttpContext context) throws IOException {
+                    return socks == null ? super.createSocket(context) : new Socket(socks);
+                }
+            };
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Proxy socksProxy(ProxyConfig proxy) {
+        if (proxy.getProxyHost() == null || !proxy.isSocksProxy())
+            return null;
+        return new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(proxy.getProxyHost(), proxy.getProxyPort()));
+    }
+
+    /**
+     * HtmlUnit 2.29 has no getter for headers added with {@link WebClient#addRequestHeader}.
+     */
+    private static Field requestHeadersField() {
+        try {
+            Field field = WebClient.class.getDeclaredField("requestHeaders_");
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> requestHeaders() {
+        try {
+            return REQUEST_HEADERS == null ? Collections.emptyMap() : (Map<String, String>) REQUEST_HEADERS.get(webClient);
+        } catch (IllegalAccessException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Streams the body of url into file, replacing its contents.
+     *
+     * @return number of bytes written
+     */
+    public long download(URL url, File file) throws IOException {
+        try (Response response = open(url)) {
+            return response.transferTo(file);
+        }
+    }
+
+    long transfer(ReadableByteChannel in, FileChannel out, long position) throws IOException {
+        ByteBuffer buf = bufferPool.acquire();
+        long written = 0L;
+        try {
+            while (in.read(buf) >= 0 || buf.position() > 0) {
+                buf.flip();
+                written += out.write(buf, position + written);
+                buf.compact();
+            }
+        } finally {
+            bufferPool.release(buf);
+        }
+        return written;
+    }
+
+    /**
+     * Sends the request and returns the unread response; closing it releases the connection.
+     *
+     * @throws HttpStatusException on a non-2xx status
+     */
+    public Response open(URL url) throws IOException {
+        return execute(newGet(url));
+    }
+
+    /**
+     * Conditional variant of {@link #open(URL)}.
+     *
+     * @return response, or null if the server answered 304 Not Modified
+     */
+    public Response openIfModified(URL url, HttpValidators validators) throws IOException {
+        HttpGet get = newGet(url);
+        if (validators != null)
+            validators.addTo(get);
+        Response response = execute(get);
+        if (response.getStatusCode() == 304) {
+            response.close();
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * Requests bytes {@code from} to {@code to} inclusive, or to the end if {@code to} is negative,
+     * unencoded so that offsets match the file. The server answers 206 with the range, or 200 with
+     * the whole body if it ignores ranges or {@code ifRange}, an ETag or Last-Modified, no longer matches.
+     */
+    public Response openRange(URL url, long from, long to, String ifRange) throws IOException {
+        HttpGet get = newGet(url);
+        get.setHeader(HttpHeaders.RANGE, "bytes=" + from + "-" + (to >= 0L ? String.valueOf(to) : ""));
+        get.setHeader(HttpHeaders.ACCEPT_ENCODING, "identity");
+        if (ifRange != null)
+            get.setHeader(HttpHeaders.IF_RANGE, ifRange);
+        return execute(get);
+    }
+
+    /**
+     * HEAD request for the size of url's body, without the body.
+     *
+     * @return Content-Length, or -1 if the server does not say
+     */
+    public long contentLength(URL url) throws IOException {
+        HttpHead head;
+        try {
+            head = new HttpHead(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        head.setHeader(HttpHeaders.ACCEPT_ENCODING, "identity");
+        try (Response response = execute(head)) {
+            String value = response.getHeader(HttpHeaders.CONTENT_LENGTH);
+            return value == null ? -1L : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static HttpGet newGet(URL url) throws IOException {
+        HttpGet get;
+        try {
+            get = new HttpGet(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        get.setHeader(HttpHeaders.ACCEPT, "*/*");
+        return get;
+    }
+
+    Response execute(HttpRequestBase get) throws IOException {
+        // read per request, as a restored session may add its user agent after this was created
+        for (Map.Entry<String, String> header : requestHeaders().entrySet()) {
+            if (!get.containsHeader(header.getKey()))
+                get.setHeader(header.getKey(), header.getValue());
+        }
+        BasicCookieStore cookieStore = new BasicCookieStore();
+        for (org.apache.http.cookie.Cookie cookie : Cookie.toHttpClient(webClient.getCookieManager().getCookies()))
+            cookieStore.addCookie(cookie);
+        HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(cookieStore);
+
+        String host = get.getURI().getHost();
+        long start = System.nanoTime();
+        CloseableHttpResponse response = httpClient.execute(get, context);
+        long ttfb = System.nanoTime() - start;
+        for (Cookie cookie : Cookie.fromHttpClient(cookieStore.getCookies()))
+            webClient.getCookieManager().addCookie(cookie);
+        int status = response.getStatusLine().getStatusCode();
+        metrics.recordStatus(host, status);
+        if ((status < 200 || status >= 300) && status != 304) {
+            response.close();
+            Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+            Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+            throw new HttpStatusException(status, get.getURI() + ": " + response.getStatusLine().getReasonPhrase(),
+                    retryAfter == null ? null : retryAfter.getValue(),
+                    contentRange == null ? null : contentRange.getValue());
+        }
+        return new Response(response, host, start, ttfb);
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    /**
+     * Open response; bytes read through it and its total latency are recorded on close.
+     */
+    public class Response implements AutoCloseable {
+        private final CloseableHttpResponse response;
+        private final String host;
+        private final long start;
+        private final long ttfb;
+        private CountingInputStream content;
+        private boolean closed = false;
+        private Runnable onClose;
+
+        Response(CloseableHttpResponse response, String host, long start, long ttfb) {
+            this.response = response;
+            this.host = host;
+            this.start = start;
+            this.ttfb = ttfb;
+        }
+
+        public synchronized InputStream getContent() throws IOException {
+            if (content == null) {
+                HttpEntity entity = response.getEntity();
+                content = new CountingInputStream(entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent());
+            }
+            return content;
+        }
+
+        /**
+         * Decodes the body using the charset declared in Content-Type, or UTF-8.
+         */
+        public String getContentAsString() throws IOException {
+            HttpEntity entity = response.getEntity();
+            if (entity == null)
+                return "";
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            return new String(ByteStreams.toByteArray(getContent()), charset != null ? charset : StandardCharsets.UTF_8);
+        }
+
+        public String getHeader(String name) {
+            Header header = response.getFirstHeader(name);
+            return header == null ? null : header.getValue();
+        }
+
+        /**
+         * Streams the body into a {@code .part} file, then replaces file with it. The old
+         * file is replaced rather than written through, so other hardlinks to it keep their
+         * contents.
+         *
+         * @return number of bytes written
+         */
+        public long transferTo(File file) throws IOException {
+            Files.createParentDirs(file);
+            File part = new File(file.getPath() + ".part");
+            long written;
+            try (ReadableByteChannel in = Channels.newChannel(getContent());
+                 FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                written = transfer(in, out, 0L);
+            } catch (IOException e) {
+                part.delete();
+                throw e;
+            }
+            OutputScan.commit(part, file);
+            return written;
+        }
+
+        public int getStatusCode() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        /**
+         * @param onClose run once, after the connection is released
+         */
+        void onClose(Runnable onClose) {
+            this.onClose = onClose;
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean first;
+            synchronized (this) {
+                first = !closed;
+                if (first) {
+                    closed = true;
+                    metrics.recordResponse(host, ttfb, System.nanoTime() - start, content == null ? 0L : content.getCount());
+                }
+            }
+            try {
+                response.close();
+            } finally {
+                if (first && onClose != null)
+                    onClose.run();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+package jw.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reusable direct buffers, so streaming transfers don't allocate per request.
+ */
+public class BufferPool {
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final int bufferSize;
+
+    public BufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buf = buffers.poll();
+        if (buf == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        buffers.offer(buf);
+    }
+
+}
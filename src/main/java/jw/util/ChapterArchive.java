@@ -0,0 +1,114 @@
+package jw.util;
+
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * CBZ archive of one chapter, written while its pages download. Pages may be added
+ * from any thread and in any order: each is held in memory only until the pages
+ * before it arrive, so entries are always written in page order. Images are already
+ * compressed, so entries are stored rather than deflated.
+ * <p>
+ * The archive is written to a {@code .part} file and only renamed into place by
+ * {@link #finish()}, so an interrupted chapter never leaves a truncated archive.
+ */
+public class ChapterArchive implements AutoCloseable {
+
+    private final File file;
+    private final File partFile;
+    private final ZipOutputStream zos;
+    private final Map<Integer, ZipEntry> pendingEntries = new HashMap<>();
+    private final Map<Integer, byte[]> pendingData = new HashMap<>();
+    private int next = 1;
+    private boolean closed = false;
+
+    public ChapterArchive(File file) throws IOException {
+        this.file = file;
+        this.partFile = new File(file.getPath() + ".part");
+        Files.createParentDirs(file);
+        this.zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), 1 << 16));
+        zos.setMethod(ZipOutputStream.STORED);
+    }
+
+    /**
+     * Entry name of a page, padded so that readers sorting by name keep page order.
+     */
+    public static String pageName(int page) {
+        return String.format("%03d", page);
+    }
+
+    /**
+     * @param page 1-based page number
+     */
+    public void add(int page, String name, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("archive closed");
+            if (page < next || pendingEntries.containsKey(page))
+                throw new IllegalArgumentException("page " + page + " already added");
+            pendingEntries.put(page, entry);
+            pendingData.put(page, data);
+            while (pendingEntries.containsKey(next)) {
+                zos.putNextEntry(pendingEntries.remove(next));
+                zos.write(pendingData.remove(next));
+                zos.closeEntry();
+                next++;
+            }
+        }
+    }
+
+    /**
+     * Completes the archive and moves it into place.
+     *
+     * @throws IOException if a page is missing
+     */
+    public synchronized void finish() throws IOException {
+        if (closed)
+            throw new IllegalStateException("archive closed");
+        if (next == 1 || !pendingEntries.isEmpty())
+            throw new IOException("Page " + next + " missing from " + file);
+        closed = true;
+        zos.close();
+        OutputScan.commit(partFile, file);
+    }
+
+    /**
+     * Discards the archive unless it was finished.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        pendingEntries.clear();
+        pendingData.clear();
+        try {
+            zos.close();
+        } catch (ZipException e) {
+            // no entries written
+        }
+        partFile.delete();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+}
@@ -0,0 +1,87 @@
+package jw.util;
+
+/**
+ * Takes a host out of rotation after consecutive failures.
+ * <p>
+ * Once open, requests are refused until the open period ends. Then a single
+ * trial request is let through: success closes the circuit, failure opens it
+ * again for twice as long, up to the maximum. A server's Retry-After also
+ * opens the circuit for the requested time.
+ */
+public class CircuitBreaker {
+
+    private enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final int failureThreshold;
+    private final long openDuration;
+    private final long maxOpenDuration;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private int trips = 0;
+    private long openUntil = 0L;
+
+    public CircuitBreaker(int failureThreshold, long openDuration, long maxOpenDuration) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.maxOpenDuration = maxOpenDuration;
+    }
+
+    /**
+     * @return true if a request may be sent now; in the half-open state only the first caller is allowed
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil)
+                    return false;
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return milliseconds until the circuit may let a request through, 0 if it does now
+     */
+    public synchronized long remainingOpen() {
+        if (state == State.CLOSED)
+            return 0L;
+        if (state == State.HALF_OPEN)
+            return openDuration;
+        return Math.max(0L, openUntil - System.currentTimeMillis());
+    }
+
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        trips = 0;
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+            long duration = Math.min(maxOpenDuration, openDuration << Math.min(trips++, 30));
+            open(duration);
+        }
+    }
+
+    /**
+     * Refuses requests for at least the given time, as asked by the server.
+     */
+    public synchronized void openFor(long millis) {
+        open(millis);
+    }
+
+    private void open(long millis) {
+        state = State.OPEN;
+        failures = 0;
+        openUntil = Math.max(openUntil, System.currentTimeMillis() + millis);
+    }
+
+}
@@ -0,0 +1,107 @@
+package jw.util;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Crash-safe record of completed work items, identified by non-negative longs.
+ * <p>
+ * Completed keys are kept as a set of runs, so memory grows with the number of
+ * runs rather than the number of keys. Each completion is appended to the
+ * journal as a {@code [start, end)} pair, flushed every {@link #BATCH_SIZE}
+ * entries. On open the journal is replayed and rewritten with merged runs.
+ * At most one unflushed batch is lost on a crash, which is simply redone.
+ */
+public class CompletionJournal implements AutoCloseable {
+
+    private static final int BATCH_SIZE = 256;
+
+    private final File file;
+    private final RangeSet<Long> done = TreeRangeSet.create();
+    private DataOutputStream out;
+    private FileOutputStream fos;
+    private int unflushed = 0;
+
+    public CompletionJournal(File file) throws IOException {
+        this.file = file;
+        Files.createParentDirs(file);
+        if (file.exists())
+            replay();
+        compact();
+        fos = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+    }
+
+    private void replay() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                long start = in.readLong();
+                long end = in.readLong();
+                if (start < end)
+                    done.add(Range.closedOpen(start, end));
+            }
+        } catch (EOFException e) {
+            // a torn trailing record is dropped
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream tmpFos = new FileOutputStream(tmp);
+             DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(tmpFos))) {
+            for (Range<Long> range : done.asRanges()) {
+                tmpOut.writeLong(range.lowerEndpoint());
+                tmpOut.writeLong(range.upperEndpoint());
+            }
+            tmpOut.flush();
+            tmpFos.getFD().sync();
+        }
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized boolean isDone(long key) {
+        return done.contains(key);
+    }
+
+    public synchronized void markDone(long key) throws IOException {
+        done.add(Range.closedOpen(key, key + 1));
+        out.writeLong(key);
+        out.writeLong(key + 1);
+        if (++unflushed >= BATCH_SIZE)
+            flush();
+    }
+
+    /**
+     * @return number of runs of consecutive completed keys
+     */
+    public synchronized int runCount() {
+        return done.asRanges().size();
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+        fos.getFD().sync();
+        unflushed = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+}
@@ -0,0 +1,95 @@
+package jw.util;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Stores each distinct file body once under {@code objectsDir/ab/abcdef...},
+ * hashing it while it streams in, and hardlinks every target to its object.
+ * Falls back to a copy where the filesystem refuses the link, e.g. when an
+ * object reaches the per-inode link limit.
+ * <p>
+ * Each body is written to its own temp file and published by linking the object
+ * to it, so concurrent writers of the same body never see a partial object.
+ */
+public class ContentAddressedStore {
+
+    private final File objectsDir;
+
+    public ContentAddressedStore(File objectsDir) {
+        this.objectsDir = objectsDir;
+    }
+
+    /**
+     * @return true if the body was already stored
+     */
+    public boolean write(InputStream is, File target) throws IOException {
+        File tmp = File.createTempFile("object", ".tmp", mkdirs(objectsDir));
+        HashCode hash;
+        try (HashingInputStream his = new HashingInputStream(Hashing.sha256(), is)) {
+            Files.asByteSink(tmp).writeFrom(his);
+            hash = his.hash();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        String hex = hash.toString();
+        File object = new File(new File(objectsDir, hex.substring(0, 2)), hex);
+        boolean existed;
+        try {
+            mkdirs(object.getParentFile());
+            existed = !publish(tmp.toPath(), object.toPath());
+        } finally {
+            tmp.delete();
+        }
+        link(object.toPath(), target);
+        return existed;
+    }
+
+    /**
+     * Links object to the finished tmp file, or renames it where links are unsupported.
+     *
+     * @return false if another writer published the object first
+     */
+    private static boolean publish(Path tmp, Path object) throws IOException {
+        try {
+            java.nio.file.Files.createLink(object, tmp);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException | UnsupportedOperationException e) {
+            if (object.toFile().exists())
+                return false;
+            // same body either way, so replacing a concurrent writer's object is harmless
+            java.nio.file.Files.move(tmp, object, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+    }
+
+    private static void link(Path object, File target) throws IOException {
+        Files.createParentDirs(target);
+        Path path = target.toPath();
+        java.nio.file.Files.deleteIfExists(path);
+        try {
+            java.nio.file.Files.createLink(path, object);
+        } catch (IOException | UnsupportedOperationException e) {
+            java.nio.file.Files.copy(object, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static File mkdirs(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Unable to create " + dir);
+        return dir;
+    }
+
+}
@@ -0,0 +1,129 @@
+package jw.util;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Two-stage pipeline: the caller crawls pages and queues download tasks while
+ * a separate thread drains the bounded queue through {@link DownloadUtil#submit},
+ * so fetching the next page overlaps with downloading the current image.
+ * Completion and failures are tracked per pipeline, so several can share one
+ * DownloadUtil without seeing each other's errors.
+ */
+public class DownloadPipeline implements AutoCloseable {
+
+    private static final DownloadUtil.Task END = () -> {
+    };
+
+    private final DownloadUtil downloadUtil;
+    private final BlockingQueue<DownloadUtil.Task> queue;
+    private final Thread consumer;
+    private volatile Exception failure;
+    private final Object pendingLock = new Object();
+    private int pending = 0;
+
+    public DownloadPipeline(DownloadUtil downloadUtil, int capacity) {
+        this.downloadUtil = downloadUtil;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.consumer = new Thread(this::drain, "download-pipeline");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    private void drain() {
+        try {
+            DownloadUtil.Task task;
+            while ((task = queue.take()) != END) {
+                if (failure == null)
+                    submit(task);
+            }
+        } catch (Exception e) {
+            failure = e;
+            queue.clear();
+        }
+    }
+
+    private void submit(DownloadUtil.Task task) throws IOException {
+        synchronized (pendingLock) {
+            pending++;
+        }
+        try {
+            downloadUtil.dispatch(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    if (failure == null)
+                        failure = e;
+                } finally {
+                    done();
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            done();
+            throw e;
+        }
+    }
+
+    private void done() {
+        synchronized (pendingLock) {
+            if (--pending == 0) pendingLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues task, blocking while the queue is full.
+     */
+    public void put(DownloadUtil.Task task) throws IOException {
+        rethrowFailure();
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Waits until every queued task has completed, rethrowing the first failure.
+     */
+    public void finish() throws IOException {
+        close();
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                try {
+                    pendingLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        }
+        rethrowFailure();
+    }
+
+    private void rethrowFailure() throws IOException {
+        Exception e = failure;
+        if (e == null)
+            return;
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw new IOException(e);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!consumer.isAlive())
+            return;
+        try {
+            queue.put(END);
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+}
@@ -6,18 +6,19 @@ import com.gargoylesoftware.htmlunit.HttpMethod;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import javax.imageio.stream.ImageInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
@@ -25,18 +26,59 @@ import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.nio.file.Paths;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DownloadUtil implements AutoCloseable {
 
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final long WEB_CLIENT_IDLE_TIMEOUT = 5 * 60 * 1000L;
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_OPEN_DURATION = 30 * 1000L;
+    private static final long CIRCUIT_MAX_OPEN_DURATION = 10 * 60 * 1000L;
+    private static final long ASYNC_POLL_INTERVAL = 20L;
 
     private WebClient webClient;
-    private int numRetries = 3;
-    private long delay = 0L;
+    private final RetryPolicy retryPolicy = new RetryPolicy(3, 1000L, 60 * 1000L);
+    private HostLimiter hostLimiter = new HostLimiter(0L);
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private boolean circuitFailFast = false;
+    private boolean streaming = false;
+    private int segments = 1;
+    private ExecutorService segmentExecutor;
+    private BinaryFetcher binaryFetcher;
+    private HttpCache httpCache;
+    private OutputScan outputScan;
+    private AsyncFetcher asyncFetcher;
+    private ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, HostQueue> hostQueues = new ConcurrentHashMap<>();
+    private final RequestMetrics metrics = new RequestMetrics();
+
+    private int threads = 1;
+    private ExecutorService executor;
+    private final Thread ownerThread = Thread.currentThread();
+    private WebClientPool webClientPool;
+    private int maxWebClients = 0;
+    private final ThreadLocal<WebClient> leasedWebClient = new ThreadLocal<>();
+    private final Object pendingLock = new Object();
+    private int pending = 0;
+    private Exception failure;
 
     public DownloadUtil() {
         webClient = getDefaultWebClient();
@@ -52,6 +94,155 @@ public class DownloadUtil implements AutoCloseable {
         return webClient;
     }
 
+    @FunctionalInterface
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs task on the worker pool, or inline if only one thread is configured.
+     * Blocks the caller when the pool's queue is full.
+     */
+    public void submit(Task task) throws IOException {
+        rethrowFailure();
+        dispatch(task);
+    }
+
+    /**
+     * Like {@link #submit} but without first rethrowing an earlier task's failure,
+     * for callers that track their own failures.
+     */
+    void dispatch(Task task) throws IOException {
+        if (threads <= 1) {
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+        synchronized (pendingLock) {
+            pending++;
+        }
+        getExecutor().execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.error(e);
+                synchronized (pendingLock) {
+                    if (failure == null) failure = e;
+                }
+            } finally {
+                synchronized (pendingLock) {
+                    if (--pending == 0) pendingLock.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for all submitted tasks, rethrowing the first failure.
+     */
+    public void awaitCompletion() throws IOException {
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                try {
+                    pendingLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        }
+        rethrowFailure();
+    }
+
+    private void rethrowFailure() throws IOException {
+        Exception e;
+        synchronized (pendingLock) {
+            e = failure;
+            failure = null;
+        }
+        if (e == null)
+            return;
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw new IOException(e);
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(threads * 4),
+                    r -> {
+                        Thread t = new Thread(r, "download-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    private synchronized WebClientPool getWebClientPool() {
+        if (webClientPool == null) {
+            int size = maxWebClients > 0 ? maxWebClients : threads * 2;
+            webClientPool = new WebClientPool(DownloadUtil::getDefaultWebClient, size,
+                    webClient.getCookieManager(), WEB_CLIENT_IDLE_TIMEOUT);
+        }
+        return webClientPool;
+    }
+
+    /**
+     * Warms up to count pooled WebClients ahead of use by other threads.
+     */
+    public void prewarmWebClients(int count) {
+        getWebClientPool().prewarm(count);
+    }
+
+    /**
+     * Binds a pooled WebClient to the calling thread until the lease is closed.
+     * Threads other than the one that created this instance must hold a lease to
+     * call {@link #getPage(URL)}, and keep it while they use the returned {@link Page}.
+     */
+    public Lease leaseWebClient() throws IOException {
+        if (Thread.currentThread() == ownerThread || leasedWebClient.get() != null)
+            return new Lease(null);
+        WebClient client = checkoutWebClient();
+        leasedWebClient.set(client);
+        return new Lease(client);
+    }
+
+    public class Lease implements AutoCloseable {
+        private final WebClient client;
+
+        private Lease(WebClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public void close() {
+            if (client != null) {
+                leasedWebClient.remove();
+                getWebClientPool().release(client);
+            }
+        }
+    }
+
+    private WebClient checkoutWebClient() throws IOException {
+        try {
+            return getWebClientPool().checkout();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
     public void downloadFileOriginalName(URL url, File outDir, boolean withPath) throws IOException {
         String path = URLDecoder.decode(url.getPath(), "UTF-8");
         String filename = withPath ? Paths.get(path).toString() : Paths.get(path).getFileName().toString();
@@ -59,62 +250,230 @@ public class DownloadUtil implements AutoCloseable {
         downloadFile(url, file);
     }
 
+    /**
+     * Walks dir in parallel for files complete from an earlier run, which downloads into
+     * it then skip. Does nothing unless skipping existing output; directories already
+     * scanned, or inside one, are not walked again.
+     */
+    public void scanOutput(File dir) throws IOException {
+        OutputScan scan = outputScan;
+        if (scan != null)
+            scan.scan(dir);
+    }
+
+    /**
+     * Scans the series directory above chapterDir, then checks whether the chapter was
+     * already archived by an earlier run and can be skipped.
+     */
+    public boolean isChapterComplete(File chapterDir, boolean cbz) throws IOException {
+        scanOutput(chapterDir.getParentFile());
+        return cbz && isComplete(new File(chapterDir.getPath() + ".cbz"));
+    }
+
+    /**
+     * @return true if file was found complete by {@link #scanOutput(File)}
+     */
+    public boolean isComplete(File file) {
+        OutputScan scan = outputScan;
+        return scan != null && scan.getStatus(file) == OutputScan.Status.COMPLETE;
+    }
+
+    /**
+     * Like {@link #isComplete(File)}, but also accepts a file whose format cannot be
+     * validated if its size matches the Content-Length the server reports.
+     */
+    private boolean isDownloaded(URL url, File file) throws IOException {
+        OutputScan scan = outputScan;
+        if (scan == null)
+            return false;
+        switch (scan.getStatus(file)) {
+            case COMPLETE:
+                break;
+            case UNVERIFIED:
+                long length = execute(url, () -> getBinaryFetcher().contentLength(url));
+                if (length < 0L || length != file.length())
+                    return false;
+                break;
+            default:
+                return false;
+        }
+        LOGGER.info("Skipping {}", file);
+        return true;
+    }
+
+    /**
+     * Saves url as {@code filenameNoExt} plus an extension detected from the
+     * leading bytes, falling back to the extension of the url path.
+     */
     public void downloadFileGuessExtension(URL url, File outDir, String filenameNoExt) throws IOException {
-        InputStream is = getStream(url);
-        PushbackInputStream pis = new PushbackInputStream(is, 32);
-        byte[] firstBytes = new byte[32];
-        pis.read(firstBytes);
-        pis.unread(firstBytes);
-
-        ByteArrayInputStream bais = new ByteArrayInputStream(firstBytes);
-        String mimeType = URLConnection.guessContentTypeFromStream(bais);
-        String extension;
-        boolean isImage = false;
-        if (mimeType.equals("text/html")) {
-            extension = "html";
-        } else if (mimeType.equals("application/xml")) {
-            extension = "xml";
-        } else if (mimeType.startsWith("image")) {
-            isImage = true;
-            extension = "";
-        } else {
-            extension = Files.getFileExtension(url.getPath());
+        OutputScan scan = outputScan;
+        if (scan != null) {
+            Optional<File> existing = scan.find(outDir, filenameNoExt);
+            if (existing.isPresent() && isDownloaded(url, existing.get()))
+                return;
         }
-        String filename = filenameNoExt;
-        if (!extension.isEmpty())
-            filename += "." + extension;
-        File file = new File(outDir, filename);
-        Files.createParentDirs(file);
-        Files.asByteSink(file).writeFrom(pis);
+        try (PushbackInputStream pis = new PushbackInputStream(getStream(url), FileFormat.HEADER_SIZE)) {
+            byte[] head = new byte[FileFormat.HEADER_SIZE];
+            int length = ByteStreams.read(pis, head, 0, head.length);
+            pis.unread(head, 0, length);
 
-        if (isImage) {
-            ImageInputStream iis = ImageIO.createImageInputStream(file);
-            Iterator<ImageReader> it = ImageIO.getImageReaders(iis);
-            boolean imagedDetected = false;
-            if (it.hasNext()) {
-                imagedDetected = true;
-                extension = it.next().getOriginatingProvider().getFileSuffixes()[0];
-                filename = filenameNoExt + "." + extension;
-            }
-            iis.close();
-            if (imagedDetected) {
-                Files.move(file, new File(outDir, filename));
-            }
+            File file = new File(outDir, withExtension(filenameNoExt, url, head, length));
+            writeAtomically(pis, file);
+        }
+    }
+
+    /**
+     * Task that downloads page {@code page} of a chapter, named by its page number or its
+     * original filename.
+     *
+     * @param archive archive to add the page to, or null to save it in chapterDir
+     */
+    public Task pageTask(URL url, File chapterDir, ChapterArchive archive, int page, boolean originalName) {
+        if (archive != null) {
+            if (originalName)
+                return () -> downloadPageOriginalName(url, archive, page);
+            return () -> downloadPage(url, archive, page, ChapterArchive.pageName(page));
         }
+        if (originalName)
+            return () -> downloadFileOriginalName(url, chapterDir, false);
+        String filenameNoExt = String.valueOf(page);
+        return () -> downloadFileGuessExtension(url, chapterDir, filenameNoExt);
+    }
+
+    /**
+     * Adds url to archive as page {@code page}, named like {@link #downloadFileGuessExtension}.
+     */
+    public void downloadPage(URL url, ChapterArchive archive, int page, String filenameNoExt) throws IOException {
+        byte[] bytes = getBytes(url);
+        archive.add(page, withExtension(filenameNoExt, url, bytes, Math.min(bytes.length, FileFormat.HEADER_SIZE)), bytes);
+    }
+
+    /**
+     * Adds url to archive as page {@code page}, named by its page number and original
+     * filename, so that names are unique and sort in page order.
+     */
+    public void downloadPageOriginalName(URL url, ChapterArchive archive, int page) throws IOException {
+        String path = URLDecoder.decode(url.getPath(), "UTF-8");
+        archive.add(page, ChapterArchive.pageName(page) + "-" + Paths.get(path).getFileName(), getBytes(url));
+    }
+
+    private static String withExtension(String filenameNoExt, URL url, byte[] head, int length) {
+        String extension = FileFormat.detect(head, length)
+                .map(FileFormat::getExtension)
+                .orElse(Files.getFileExtension(url.getPath()));
+        return extension.isEmpty() ? filenameNoExt : filenameNoExt + "." + extension;
     }
 
     public void downloadFile(URL url, File file) throws IOException {
-        InputStream is = getStream(url);
+        if (isDownloaded(url, file))
+            return;
+        if (streaming) {
+            new RangeDownloader(this, url, file).download(segments, getSegmentExecutor());
+            return;
+        }
+        try (InputStream is = getStream(url)) {
+            writeAtomically(is, file);
+        }
+    }
+
+    private static void writeAtomically(InputStream is, File file) throws IOException {
         Files.createParentDirs(file);
-        Files.asByteSink(file).writeFrom(is);
+        File part = new File(file.getPath() + ".part");
+        try {
+            Files.asByteSink(part).writeFrom(is);
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        }
+        OutputScan.commit(part, file);
     }
 
     public InputStream getStream(URL url) throws IOException {
-        return getPage(url).getWebResponse().getContentAsStream();
+        if (streaming) {
+            BinaryFetcher.Response response = execute(url, () -> getBinaryFetcher().open(url));
+            return new FilterInputStream(response.getContent()) {
+                @Override
+                public void close() throws IOException {
+                    response.close();
+                }
+            };
+        }
+        Lease lease = leaseWebClient();
+        try {
+            InputStream is = getPage(url).getWebResponse().getContentAsStream();
+            return new FilterInputStream(is) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        lease.close();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    public byte[] getBytes(URL url) throws IOException {
+        try (InputStream is = getStream(url)) {
+            return ByteStreams.toByteArray(is);
+        }
+    }
+
+    /**
+     * Streaming conditional GET using the given validators, if any.
+     * The response must be closed to release its connection.
+     *
+     * @return response, or null if the server answered 304 Not Modified
+     */
+    public BinaryFetcher.Response openIfModified(URL url, HttpValidators validators) throws IOException {
+        return execute(url, () -> getBinaryFetcher().openIfModified(url, validators));
+    }
+
+    synchronized BinaryFetcher getBinaryFetcher() {
+        if (binaryFetcher == null)
+            binaryFetcher = new BinaryFetcher(webClient, metrics);
+        return binaryFetcher;
     }
 
+    /**
+     * In streaming mode the html is fetched without HtmlUnit, so no JavaScript is run;
+     * use {@link #getPage(URL)} for pages that need it.
+     */
     public String getHtml(URL url) throws IOException {
-        return getPage(url).getWebResponse().getContentAsString();
+        if (httpCache != null) {
+            String html = httpCache.get(url);
+            if (html != null) {
+                LOGGER.info("Cached {}", url);
+                return html;
+            }
+        }
+        String html;
+        String cacheControl;
+        if (streaming) {
+            String[] result = execute(url, () -> {
+                try (BinaryFetcher.Response response = getBinaryFetcher().open(url)) {
+                    return new String[]{response.getContentAsString(), response.getHeader("Cache-Control")};
+                }
+            });
+            html = result[0];
+            cacheControl = result[1];
+        } else {
+            Lease lease = leaseWebClient();
+            try {
+                WebResponse response = getPage(url).getWebResponse();
+                html = response.getContentAsString();
+                cacheControl = response.getResponseHeaderValue("Cache-Control");
+            } finally {
+                lease.close();
+            }
+        }
+        if (httpCache != null)
+            httpCache.put(url, html, cacheControl);
+        return html;
     }
 
     public Document getDocument(URL url) throws IOException, URISyntaxException {
@@ -128,61 +487,668 @@ public class DownloadUtil implements AutoCloseable {
         return getDocument(html, url);
     }
 
-    private static Document getDocument(String html, URL url) throws URISyntaxException {
+    public static Document getDocument(String html, URL url) throws URISyntaxException {
         Document doc = Jsoup.parse(html);
         URI baseUri = new URI(url.getProtocol(), url.getAuthority(), null, null, null);
         doc.setBaseUri(baseUri.toString());
         return doc;
     }
 
+    /**
+     * Non-blocking {@link #getBytes(URL)}, with the same delay, connection limits and retries.
+     */
+    public CompletableFuture<byte[]> getBytesAsync(URL url) {
+        return executeAsync(url, () -> getAsyncFetcher().get(url)).thenApply(AsyncFetcher.Body::getBytes);
+    }
+
+    /**
+     * Non-blocking {@link #getHtml(URL)}; like streaming mode, no JavaScript is run.
+     */
+    public CompletableFuture<String> getHtmlAsync(URL url) {
+        if (httpCache != null) {
+            try {
+                String html = httpCache.get(url);
+                if (html != null) {
+                    LOGGER.info("Cached {}", url);
+                    return CompletableFuture.completedFuture(html);
+                }
+            } catch (IOException e) {
+                return failedFuture(e);
+            }
+        }
+        return executeAsync(url, () -> getAsyncFetcher().get(url)).thenApply(body -> {
+            String html = body.getContentAsString();
+            if (httpCache != null) {
+                try {
+                    httpCache.put(url, html, body.getCacheControl());
+                } catch (IOException e) {
+                    LOGGER.warn(e);
+                }
+            }
+            return html;
+        });
+    }
+
+    /**
+     * Non-blocking {@link #getDocument(URL)}; the html is parsed on the common pool.
+     */
+    public CompletableFuture<Document> getDocumentAsync(URL url) {
+        return getHtmlAsync(url).thenApplyAsync(html -> {
+            try {
+                return getDocument(html, url);
+            } catch (URISyntaxException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Non-blocking {@link #downloadFile(URL, File)}, streaming the body to disk as it arrives.
+     */
+    public CompletableFuture<Void> downloadFileAsync(URL url, File file) {
+        if (isComplete(file)) {
+            LOGGER.info("Skipping {}", file);
+            return CompletableFuture.completedFuture(null);
+        }
+        File part = new File(file.getPath() + ".part");
+        return executeAsync(url, () -> getAsyncFetcher().download(url, part)).thenApply(written -> {
+            try {
+                OutputScan.commit(part, file);
+                return null;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Non-blocking {@link #downloadFileGuessExtension}: the body is streamed to a
+     * {@code .part} file and renamed once its leading bytes are known.
+     *
+     * @return future of the saved file
+     */
+    public CompletableFuture<File> downloadFileGuessExtensionAsync(URL url, File outDir, String filenameNoExt) {
+        OutputScan scan = outputScan;
+        Optional<File> existing = scan == null ? Optional.empty() : scan.find(outDir, filenameNoExt);
+        if (existing.isPresent() && isComplete(existing.get())) {
+            LOGGER.info("Skipping {}", existing.get());
+            return CompletableFuture.completedFuture(existing.get());
+        }
+        File part = new File(outDir, filenameNoExt + ".part");
+        return executeAsync(url, () -> getAsyncFetcher().download(url, part)).thenApply(written -> {
+            try {
+                byte[] head = new byte[FileFormat.HEADER_SIZE];
+                int length;
+                try (InputStream is = new FileInputStream(part)) {
+                    length = ByteStreams.read(is, head, 0, head.length);
+                }
+                File file = new File(outDir, withExtension(filenameNoExt, url, head, length));
+                OutputScan.commit(part, file);
+                return file;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private synchronized ExecutorService getSegmentExecutor() {
+        if (segmentExecutor == null) {
+            AtomicInteger count = new AtomicInteger();
+            segmentExecutor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "download-segment-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return segmentExecutor;
+    }
+
+    private synchronized AsyncFetcher getAsyncFetcher() throws IOException {
+        if (asyncFetcher == null)
+            asyncFetcher = new AsyncFetcher(webClient, metrics);
+        return asyncFetcher;
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "download-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
     public <P extends Page> P getPage(URL url) throws IOException {
         WebRequest request = new WebRequest(url, HttpMethod.GET);
         return getPage(request);
     }
 
+    /**
+     * WebClient is not thread-safe: the creating thread uses the main client,
+     * other threads their leased client.
+     *
+     * @throws IllegalStateException if called from another thread without a lease, as the
+     *                               page would outlive its client's return to the pool
+     */
     private <P extends Page> P getPage(WebRequest request) throws IOException {
-        LOGGER.info("Grabbing {}", request.getUrl());
-        int i = numRetries;
+        WebClient client = Thread.currentThread() == ownerThread ? webClient : leasedWebClient.get();
+        if (client == null)
+            throw new IllegalStateException("getPage from " + Thread.currentThread().getName() + " requires leaseWebClient()");
+        return execute(request.getUrl(), () -> client.getPage(request));
+    }
 
-        P page = null;
-        do {
+    @FunctionalInterface
+    interface Request<T> {
+        T execute() throws IOException;
+    }
+
+    /**
+     * Runs request under the host's rate and connection limits and circuit breaker, retrying
+     * timeouts, 408, 429 and 5xx responses with backoff, or after the server's Retry-After.
+     * HtmlUnit pages are recorded in the metrics here, streamed responses by {@link BinaryFetcher}.
+     */
+    <T> T execute(URL url, Request<T> request) throws IOException {
+        LOGGER.info("Grabbing {}", url);
+        String host = url.getHost();
+        CircuitBreaker breaker = getCircuitBreaker(host);
+        int attempt = 0;
+        while (true) {
+            awaitCircuit(host, breaker);
+            metrics.recordDelay(host, hostLimiter.acquire(url));
+            try {
+                hostLimiter.acquireConnection(url);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            long start = System.nanoTime();
+            long backoff;
+            boolean heldByResponse = false;
             try {
-                page = webClient.getPage(request);
-            } catch (ConnectTimeoutException | SocketTimeoutException | FailingHttpStatusCodeException e) {
+                T result = request.execute();
+                if (result instanceof Page) {
+                    WebResponse response = ((Page) result).getWebResponse();
+                    metrics.recordStatus(host, response.getStatusCode());
+                    metrics.recordResponse(host, -1L, System.nanoTime() - start, response.getContentLength());
+                }
+                hostLimiter.onSuccess(url, System.nanoTime() - start);
+                breaker.onSuccess();
+                if (result instanceof BinaryFetcher.Response) {
+                    // the body streams after this returns, so the connection is only released when the response is closed
+                    ((BinaryFetcher.Response) result).onClose(() -> hostLimiter.releaseConnection(url));
+                    heldByResponse = true;
+                }
+                return result;
+            } catch (ConnectTimeoutException | SocketTimeoutException | FailingHttpStatusCodeException | HttpResponseException e) {
                 LOGGER.warn(e);
-                if (i-- <= 0) throw e;
+                if (e instanceof FailingHttpStatusCodeException)
+                    metrics.recordStatus(host, ((FailingHttpStatusCodeException) e).getStatusCode());
+                else if (!(e instanceof HttpResponseException))
+                    metrics.recordTimeout(host);
+                if (!RetryPolicy.isRetriable(e)) {
+                    breaker.onSuccess();
+                    throw e;
+                }
+                hostLimiter.onPressure(url);
+                long retryAfter = retryPolicy.getRetryAfter(e);
+                if (retryAfter > 0L)
+                    breaker.openFor(retryAfter);
+                else
+                    breaker.onFailure();
+                if (attempt >= retryPolicy.getMaxRetries())
+                    throw e;
+                if (circuitFailFast && breaker.isOpen())
+                    throw new HostUnavailableException(host, e);
+                backoff = Math.max(retryPolicy.backoff(attempt++), retryAfter);
+                metrics.recordRetry(host);
+            } catch (IOException | RuntimeException e) {
+                breaker.onFailure();
+                throw e;
+            } finally {
+                if (!heldByResponse)
+                    hostLimiter.releaseConnection(url);
+            }
+            LOGGER.info("Retrying {} in {} ms", url, backoff);
+            sleep(backoff);
+        }
+    }
+
+    private CircuitBreaker getCircuitBreaker(String host) {
+        return circuitBreakers.computeIfAbsent(host, h -> new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD,
+                CIRCUIT_OPEN_DURATION, CIRCUIT_MAX_OPEN_DURATION));
+    }
+
+    /**
+     * Blocks until the host's circuit lets a request through, or fails
+     * immediately if it is open and fail fast is enabled.
+     */
+    private void awaitCircuit(String host, CircuitBreaker breaker) throws IOException {
+        while (!breaker.tryAcquire()) {
+            if (circuitFailFast)
+                throw new HostUnavailableException(host, null);
+            sleep(Math.max(100L, Math.min(breaker.remainingOpen(), 1000L)));
+        }
+    }
+
+    @FunctionalInterface
+    private interface AsyncRequest<T> {
+        CompletableFuture<T> execute() throws IOException;
+    }
+
+    /**
+     * Non-blocking {@link #execute}: waits for the circuit, the delay and a connection
+     * slot on the scheduler instead of in the caller, and retries on the same terms.
+     */
+    private <T> CompletableFuture<T> executeAsync(URL url, AsyncRequest<T> request) {
+        LOGGER.info("Grabbing {}", url);
+        AsyncCall<T> call = new AsyncCall<>(url, request);
+        call.run();
+        return call.future;
+    }
+
+    private class AsyncCall<T> implements Runnable {
+        private final URL url;
+        private final String host;
+        private final AsyncRequest<T> request;
+        private final CircuitBreaker breaker;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int attempt = 0;
+        private long queued;
+
+        AsyncCall(URL url, AsyncRequest<T> request) {
+            this.url = url;
+            this.host = url.getHost();
+            this.request = request;
+            this.breaker = getCircuitBreaker(host);
+        }
+
+        /**
+         * Starts an attempt once the host's circuit lets it through.
+         */
+        @Override
+        public void run() {
+            if (future.isDone())
+                return;
+            if (!breaker.tryAcquire()) {
+                if (circuitFailFast)
+                    future.completeExceptionally(new HostUnavailableException(host, null));
+                else
+                    getScheduler().schedule(this, Math.max(100L, Math.min(breaker.remainingOpen(), 1000L)), TimeUnit.MILLISECONDS);
+                return;
+            }
+            queued = System.nanoTime();
+            hostQueues.computeIfAbsent(host, h -> new HostQueue(url)).add(this::send);
+        }
+
+        /**
+         * Sends the request, holding a connection slot until it completes.
+         */
+        private void send() {
+            if (future.isDone()) {
+                hostLimiter.releaseConnection(url);
+                hostQueues.get(host).drain();
+                return;
+            }
+            metrics.recordDelay(host, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued));
+            long start = System.nanoTime();
+            CompletableFuture<T> response;
+            try {
+                response = request.execute();
+            } catch (IOException | RuntimeException e) {
+                response = failedFuture(e);
             }
-        } while (page == null);
+            response.whenComplete((result, e) -> {
+                hostLimiter.releaseConnection(url);
+                hostQueues.get(host).drain();
+                complete(result, e, System.nanoTime() - start);
+            });
+        }
+
+        private void complete(T result, Throwable t, long latency) {
+            if (t == null) {
+                hostLimiter.onSuccess(url, latency);
+                breaker.onSuccess();
+                future.complete(result);
+                return;
+            }
+            Throwable e = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (!(e instanceof SocketTimeoutException) && !(e instanceof HttpResponseException)) {
+                breaker.onFailure();
+                future.completeExceptionally(e);
+                return;
+            }
+            LOGGER.warn(e);
+            if (e instanceof SocketTimeoutException)
+                metrics.recordTimeout(host);
+            if (!RetryPolicy.isRetriable((Exception) e)) {
+                breaker.onSuccess();
+                future.completeExceptionally(e);
+                return;
+            }
+            hostLimiter.onPressure(url);
+            long retryAfter = retryPolicy.getRetryAfter((Exception) e);
+            if (retryAfter > 0L)
+                breaker.openFor(retryAfter);
+            else
+                breaker.onFailure();
+            if (attempt >= retryPolicy.getMaxRetries()) {
+                future.completeExceptionally(e);
+                return;
+            }
+            if (circuitFailFast && breaker.isOpen()) {
+                future.completeExceptionally(new HostUnavailableException(host, (Exception) e));
+                return;
+            }
+            long backoff = Math.max(retryPolicy.backoff(attempt++), retryAfter);
+            metrics.recordRetry(host);
+            LOGGER.info("Retrying {} in {} ms", url, backoff);
+            getScheduler().schedule(this, backoff, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Async requests waiting for a host's delay and a connection slot, in arrival order.
+     * Drained whenever a request is added or completes, and polled while the limiter refuses,
+     * since blocking callers sharing the limiter release slots without notice.
+     */
+    private class HostQueue implements Runnable {
+        private final URL url;
+        private final Deque<Runnable> waiting = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        HostQueue(URL url) {
+            this.url = url;
+        }
+
+        void add(Runnable send) {
+            synchronized (this) {
+                waiting.addLast(send);
+            }
+            drain();
+        }
+
+        void drain() {
+            List<Runnable> ready = new ArrayList<>();
+            synchronized (this) {
+                while (!waiting.isEmpty()) {
+                    if (!hostLimiter.tryAcquireConnection(url))
+                        break;
+                    if (!hostLimiter.tryAcquire(url)) {
+                        hostLimiter.releaseConnection(url);
+                        break;
+                    }
+                    ready.add(waiting.pollFirst());
+                }
+                if (!waiting.isEmpty() && !scheduled) {
+                    scheduled = true;
+                    getScheduler().schedule(this, ASYNC_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            }
+            ready.forEach(Runnable::run);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                scheduled = false;
+            }
+            drain();
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
         try {
-            Thread.sleep(delay);
+            Thread.sleep(millis);
         } catch (InterruptedException e) {
-            LOGGER.error(e);
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
         }
-        return page;
+    }
+
+    /**
+     * @return true unless the host's circuit is open after repeated failures or a Retry-After
+     */
+    public boolean isHostAvailable(String host) {
+        CircuitBreaker breaker = circuitBreakers.get(host);
+        return breaker == null || breaker.remainingOpen() == 0L;
+    }
+
+    /**
+     * @return milliseconds until the host's circuit may let a request through, 0 if it does now
+     */
+    public long getHostUnavailableMillis(String host) {
+        CircuitBreaker breaker = circuitBreakers.get(host);
+        return breaker == null ? 0L : breaker.remainingOpen();
     }
 
     @Override
     public void close() throws Exception {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                executor.awaitTermination(1L, TimeUnit.MINUTES);
+            }
+        }
+        synchronized (this) {
+            if (webClientPool != null)
+                webClientPool.close();
+        }
+        if (binaryFetcher != null)
+            binaryFetcher.close();
+        synchronized (this) {
+            if (segmentExecutor != null)
+                segmentExecutor.shutdownNow();
+            if (scheduler != null)
+                scheduler.shutdownNow();
+            if (asyncFetcher != null)
+                asyncFetcher.close();
+        }
         webClient.close();
+        metrics.close();
     }
 
     public int getNumRetries() {
-        return numRetries;
+        return retryPolicy.getMaxRetries();
     }
 
     public void setNumRetries(int numRetries) {
-        this.numRetries = numRetries;
+        retryPolicy.setMaxRetries(numRetries);
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public boolean isCircuitFailFast() {
+        return circuitFailFast;
+    }
+
+    /**
+     * Fail requests to a host whose circuit is open with {@link HostUnavailableException}
+     * instead of waiting for it to close, for callers that can route work to other hosts.
+     */
+    public void setCircuitFailFast(boolean circuitFailFast) {
+        this.circuitFailFast = circuitFailFast;
+    }
+
+    public HostLimiter getHostLimiter() {
+        return hostLimiter;
+    }
+
+    /**
+     * Shares per-host rate and connection limits with other instances, so that
+     * concurrent jobs stay within one politeness budget per host.
+     */
+    public void setHostLimiter(HostLimiter hostLimiter) {
+        this.hostLimiter = hostLimiter;
     }
 
     public long getDelay() {
-        return delay;
+        return hostLimiter.getDelay();
     }
 
+    /**
+     * Minimum interval between requests to the same host.
+     */
     public void setDelay(long delay) {
-        this.delay = delay;
+        hostLimiter.setDelay(delay);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return hostLimiter.getMaxConnections();
+    }
+
+    /**
+     * Maximum concurrent requests to the same host, 0 for unbounded.
+     */
+    public void setMaxConnectionsPerHost(int maxConnections) {
+        hostLimiter.setMaxConnections(maxConnections);
+    }
+
+    public boolean isAdaptive() {
+        return hostLimiter.isAdaptive();
+    }
+
+    /**
+     * Adapt each host's request rate and connections to its latency and errors,
+     * starting from the delay, up to the max rate and max connections per host.
+     */
+    public void setAdaptive(boolean adaptive) {
+        hostLimiter.setAdaptive(adaptive);
+    }
+
+    public double getMaxRate() {
+        return hostLimiter.getMaxRate();
+    }
+
+    /**
+     * Ceiling on requests per second per host in adaptive mode.
+     */
+    public void setMaxRate(double maxRate) {
+        hostLimiter.setMaxRate(maxRate);
+    }
+
+    /**
+     * Turn on adaptive mode up to the given rate, capping connections per host
+     * at the thread count unless a limit is already set.
+     */
+    public void enableAdaptive(double maxRate) {
+        setAdaptive(true);
+        setMaxRate(maxRate);
+        if (getMaxConnectionsPerHost() <= 0)
+            setMaxConnectionsPerHost(getThreads());
+    }
+
+    public int availableConnections(String host) {
+        return hostLimiter.availableConnections(host);
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Fetch files and streams directly over HttpClient instead of through HtmlUnit pages.
+     * Files are then written through a {@code .part} file that resumes with Range requests.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Split files of at least twice {@value RangeDownloader#MIN_SEGMENT_SIZE} bytes into up to
+     * this many ranges fetched in parallel, if the server supports ranges. Only in streaming mode.
+     */
+    public void setSegments(int segments) {
+        this.segments = segments;
+    }
+
+    public boolean isSkipExisting() {
+        return outputScan != null;
+    }
+
+    /**
+     * Skip downloads whose target a {@link #scanOutput(File)} found complete.
+     */
+    public void setSkipExisting(boolean skipExisting) {
+        outputScan = skipExisting ? new OutputScan() : null;
+    }
+
+    public HttpCache getHttpCache() {
+        return httpCache;
+    }
+
+    /**
+     * Drops url from the html cache, if any, so that the next fetch goes to the server.
+     */
+    public void invalidateCached(URL url) {
+        if (httpCache != null)
+            httpCache.invalidate(url);
+    }
+
+    /**
+     * Cache consulted by {@link #getHtml(URL)} and {@link #getDocument(URL)}, null to disable.
+     */
+    public void setHttpCache(HttpCache httpCache) {
+        this.httpCache = httpCache;
+    }
+
+    public int getMaxWebClients() {
+        return maxWebClients;
+    }
+
+    /**
+     * Bound on pooled WebClients used by threads other than the creating one,
+     * 0 for twice the number of threads.
+     */
+    public synchronized void setMaxWebClients(int maxWebClients) {
+        if (webClientPool != null)
+            throw new IllegalStateException("web client pool already started");
+        this.maxWebClients = maxWebClients;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public synchronized void setThreads(int threads) {
+        if (executor != null)
+            throw new IllegalStateException("worker pool already started");
+        this.threads = Math.max(1, threads);
+    }
+
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publishes request metrics over JMX under the scraper name and logs a summary
+     * every {@code logInterval} seconds, 0 to only log on close.
+     */
+    public void enableMetrics(String scraper, long logInterval) {
+        metrics.register(scraper);
+        metrics.startLogging(logInterval);
     }
 
+    /**
+     * @return the client the calling thread's pages are fetched with: its leased client, if any, else the main one
+     */
     public WebClient getWebClient() {
+        WebClient leased = leasedWebClient.get();
+        if (leased != null)
+            return leased;
         return webClient;
     }
 
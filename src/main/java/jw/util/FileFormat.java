@@ -0,0 +1,100 @@
+package jw.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Registry of file formats recognised by their leading magic bytes.
+ * Formats are tried in declaration order, so more specific signatures come first.
+ */
+public enum FileFormat {
+
+    PNG("png", 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A),
+    JPEG("jpg", 0, 0xFF, 0xD8, 0xFF),
+    GIF87A("gif", 0, 'G', 'I', 'F', '8', '7', 'a'),
+    GIF89A("gif", 0, 'G', 'I', 'F', '8', '9', 'a'),
+    WEBP("webp", 8, 'W', 'E', 'B', 'P') {
+        @Override
+        boolean matches(byte[] head, int length) {
+            return RIFF.matches(head, length) && super.matches(head, length);
+        }
+    },
+    TIFF_LE("tif", 0, 'I', 'I', 0x2A, 0x00),
+    TIFF_BE("tif", 0, 'M', 'M', 0x00, 0x2A),
+    BMP("bmp", 0, 'B', 'M'),
+    PDF("pdf", 0, '%', 'P', 'D', 'F'),
+    ZIP("zip", 0, 'P', 'K', 0x03, 0x04),
+    FLAC("flac", 0, 'f', 'L', 'a', 'C'),
+    OGG("ogg", 0, 'O', 'g', 'g', 'S'),
+    MP3_ID3("mp3", 0, 'I', 'D', '3'),
+    MP3_FRAME("mp3", 0) {
+        @Override
+        boolean matches(byte[] head, int length) {
+            return length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xE0) == 0xE0;
+        }
+    },
+    XML("xml", 0) {
+        @Override
+        boolean matches(byte[] head, int length) {
+            return text(head, length).startsWith("<?xml");
+        }
+    },
+    HTML("html", 0) {
+        @Override
+        boolean matches(byte[] head, int length) {
+            String text = text(head, length).toLowerCase(Locale.ROOT);
+            return text.startsWith("<!doctype html") || text.startsWith("<html") ||
+                    text.startsWith("<head") || text.startsWith("<body") || text.startsWith("<!--");
+        }
+    },
+    RIFF("riff", 0, 'R', 'I', 'F', 'F');
+
+    /**
+     * Number of leading bytes needed to detect any format.
+     */
+    public static final int HEADER_SIZE = 32;
+
+    private final String extension;
+    private final int offset;
+    private final int[] magic;
+
+    FileFormat(String extension, int offset, int... magic) {
+        this.extension = extension;
+        this.offset = offset;
+        this.magic = magic;
+    }
+
+    boolean matches(byte[] head, int length) {
+        if (length < offset + magic.length)
+            return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[offset + i] & 0xFF) != magic[i])
+                return false;
+        }
+        return true;
+    }
+
+    public static Optional<FileFormat> detect(byte[] head, int length) {
+        for (FileFormat format : values()) {
+            if (format.matches(head, length))
+                return Optional.of(format);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Leading text with any byte order mark and whitespace removed.
+     */
+    private static String text(byte[] head, int length) {
+        String text = new String(head, 0, Math.max(length, 0), StandardCharsets.ISO_8859_1);
+        if (text.startsWith("\u00EF\u00BB\u00BF"))
+            text = text.substring(3);
+        return text.trim();
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+}
@@ -0,0 +1,265 @@
+package jw.util;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket per host, so that the politeness delay throttles each server
+ * independently instead of serializing every request in the process.
+ * <p>
+ * In adaptive mode each host's rate and connection limit follow AIMD: both grow
+ * additively while responses are healthy, up to the ceilings, and are halved on
+ * pressure, i.e. retriable errors or latency well above its running baseline.
+ */
+public class HostLimiter {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final double MIN_RATE = 0.1d;
+    private static final double DECREASE = 0.5d;
+    private static final double FAST_WEIGHT = 0.2d;
+    private static final double SLOW_WEIGHT = 0.02d;
+    private static final double LATENCY_TOLERANCE = 2d;
+    private static final int MIN_SAMPLES = 10;
+
+    private final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Semaphore> connections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AdaptiveHost> adaptiveHosts = new ConcurrentHashMap<>();
+    private volatile long delay;
+    private volatile int maxConnections = 0;
+    private volatile boolean adaptive = false;
+    private volatile double maxRate = 10d;
+
+    public HostLimiter(long delay) {
+        setDelay(delay);
+    }
+
+    /**
+     * Blocks until a request to the host of {@code url} is allowed.
+     *
+     * @return time spent waiting in milliseconds
+     */
+    public long acquire(URL url) {
+        if (adaptive)
+            return (long) (adaptive(url.getHost()).limiter.acquire() * 1000d);
+        if (delay <= 0L)
+            return 0L;
+        double waited = limiter(url.getHost()).acquire();
+        return (long) (waited * 1000d);
+    }
+
+    /**
+     * Blocks until a connection slot to the host of {@code url} is free.
+     * Every call must be paired with {@link #releaseConnection(URL)}.
+     */
+    public void acquireConnection(URL url) throws InterruptedException {
+        if (adaptive)
+            adaptive(url.getHost()).acquireConnection();
+        else if (maxConnections > 0)
+            connections(url.getHost()).acquire();
+    }
+
+    /**
+     * Non-blocking {@link #acquire(URL)}.
+     *
+     * @return true if a request to the host of {@code url} is allowed now
+     */
+    public boolean tryAcquire(URL url) {
+        if (adaptive)
+            return adaptive(url.getHost()).limiter.tryAcquire();
+        return delay <= 0L || limiter(url.getHost()).tryAcquire();
+    }
+
+    /**
+     * Non-blocking {@link #acquireConnection(URL)}; a true result must be paired with
+     * {@link #releaseConnection(URL)}.
+     */
+    public boolean tryAcquireConnection(URL url) {
+        if (adaptive)
+            return adaptive(url.getHost()).tryAcquireConnection();
+        return maxConnections <= 0 || connections(url.getHost()).tryAcquire();
+    }
+
+    public void releaseConnection(URL url) {
+        if (adaptive)
+            adaptive(url.getHost()).releaseConnection();
+        else if (maxConnections > 0)
+            connections(url.getHost()).release();
+    }
+
+    /**
+     * Reports a healthy response and how long it took, in adaptive mode.
+     */
+    public void onSuccess(URL url, long latencyNanos) {
+        if (adaptive)
+            adaptive(url.getHost()).onSuccess(latencyNanos);
+    }
+
+    /**
+     * Reports a sign of server overload, e.g. a timeout, 429 or 503, in adaptive mode.
+     */
+    public void onPressure(URL url) {
+        if (adaptive)
+            adaptive(url.getHost()).onPressure();
+    }
+
+    /**
+     * @return free connection slots for host, or {@link Integer#MAX_VALUE} if unbounded
+     */
+    public int availableConnections(String host) {
+        if (adaptive)
+            return adaptive(host).available();
+        if (maxConnections <= 0)
+            return Integer.MAX_VALUE;
+        return connections(host).availablePermits();
+    }
+
+    private Semaphore connections(String host) {
+        return connections.computeIfAbsent(host, h -> new Semaphore(maxConnections, true));
+    }
+
+    private AdaptiveHost adaptive(String host) {
+        return adaptiveHosts.computeIfAbsent(host, AdaptiveHost::new);
+    }
+
+    private RateLimiter limiter(String host) {
+        return limiters.computeIfAbsent(host, h -> RateLimiter.create(permitsPerSecond()));
+    }
+
+    private double permitsPerSecond() {
+        return 1000d / delay;
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    public void setDelay(long delay) {
+        this.delay = delay;
+        if (delay > 0L) {
+            double rate = permitsPerSecond();
+            limiters.values().forEach(l -> l.setRate(rate));
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Maximum concurrent requests per host, 0 for unbounded.
+     * Must be set before any connection is acquired.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (!connections.isEmpty())
+            throw new IllegalStateException("connections already in use");
+        this.maxConnections = maxConnections;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Adapt each host's rate and connections to its health, starting from the delay
+     * and up to {@link #setMaxRate(double)} and the maximum connections, if any.
+     * Must be set before any request is made.
+     */
+    public void setAdaptive(boolean adaptive) {
+        if (!connections.isEmpty() || !adaptiveHosts.isEmpty())
+            throw new IllegalStateException("connections already in use");
+        this.adaptive = adaptive;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * Ceiling on requests per second per host in adaptive mode.
+     */
+    public void setMaxRate(double maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    private class AdaptiveHost {
+        private final String host;
+        private final RateLimiter limiter;
+        private double rate;
+        private double limit = 1d;
+        private int inFlight = 0;
+        private double latency;
+        private double baseline;
+        private int samples = 0;
+        private long holdUntil = 0L;
+
+        AdaptiveHost(String host) {
+            this.host = host;
+            rate = delay > 0L ? Math.min(maxRate, 1000d / delay) : maxRate;
+            limiter = RateLimiter.create(rate);
+        }
+
+        synchronized void acquireConnection() throws InterruptedException {
+            while (inFlight >= (int) limit)
+                wait();
+            inFlight++;
+        }
+
+        synchronized boolean tryAcquireConnection() {
+            if (inFlight >= (int) limit)
+                return false;
+            inFlight++;
+            return true;
+        }
+
+        synchronized void releaseConnection() {
+            inFlight--;
+            notifyAll();
+        }
+
+        synchronized int available() {
+            return Math.max(0, (int) limit - inFlight);
+        }
+
+        synchronized void onSuccess(long latencyNanos) {
+            if (samples++ == 0) {
+                latency = latencyNanos;
+                baseline = latencyNanos;
+            } else {
+                latency += (latencyNanos - latency) * FAST_WEIGHT;
+                baseline += (latencyNanos - baseline) * SLOW_WEIGHT;
+            }
+            if (samples >= MIN_SAMPLES && latency > baseline * LATENCY_TOLERANCE) {
+                onPressure();
+                return;
+            }
+            int ceiling = maxConnections > 0 ? maxConnections : Integer.MAX_VALUE;
+            limit = Math.min(ceiling, limit + 1d / limit);
+            rate = Math.min(maxRate, rate + 1d / rate);
+            limiter.setRate(rate);
+            notifyAll();
+        }
+
+        /**
+         * Cuts at most once per round trip, so one burst of failures counts as one signal.
+         */
+        synchronized void onPressure() {
+            long now = System.nanoTime();
+            if (now < holdUntil)
+                return;
+            limit = Math.max(1d, limit * DECREASE);
+            rate = Math.max(MIN_RATE, rate * DECREASE);
+            limiter.setRate(rate);
+            holdUntil = now + Math.max((long) latency, TimeUnit.SECONDS.toNanos(1L));
+            LOGGER.info("Slowing down {} to {} connections at {} requests/s", host, (int) limit,
+                    String.format("%.2f", rate));
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package jw.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counters behind {@link HostMetricsMXBean}.
+ */
+public class HostMetrics implements HostMetricsMXBean {
+
+    private static final long[] BUCKET_BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private final String host;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+    private final LongAdder ttfbCount = new LongAdder();
+    private final LongAdder ttfbNanos = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final LongAdder delayMillis = new LongAdder();
+    private final AtomicLong firstRequest = new AtomicLong();
+
+    public HostMetrics(String host) {
+        this.host = host;
+    }
+
+    /**
+     * @param ttfbNanos time to first byte, or negative if unknown
+     */
+    void recordResponse(long ttfbNanos, long latencyNanos, long bytes) {
+        firstRequest.compareAndSet(0L, System.nanoTime() - latencyNanos);
+        requests.increment();
+        this.bytes.add(Math.max(bytes, 0L));
+        this.latencyNanos.add(latencyNanos);
+        maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+        histogram.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMillis(latencyNanos)));
+        if (ttfbNanos >= 0L) {
+            ttfbCount.increment();
+            this.ttfbNanos.add(ttfbNanos);
+        }
+    }
+
+    void recordStatus(int status) {
+        statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+    }
+
+    void recordRetry() {
+        retries.increment();
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    void recordDelay(long millis) {
+        delayMillis.add(millis);
+    }
+
+    private static int bucket(long millis) {
+        int i = 0;
+        while (i < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[i])
+            i++;
+        return i;
+    }
+
+    /**
+     * Latency below which the given fraction of requests fall, rounded up to a bucket bound.
+     *
+     * @return bound in milliseconds, or -1 if it lies in the unbounded bucket
+     */
+    public long latencyPercentile(double fraction) {
+        long[] counts = getLatencyHistogram();
+        long total = 0L;
+        for (long count : counts)
+            total += count;
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.ceil(total * fraction))
+                return BUCKET_BOUNDS[i];
+        }
+        return -1L;
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        long first = firstRequest.get();
+        if (first == 0L)
+            return 0d;
+        double seconds = (System.nanoTime() - first) / 1e9;
+        return seconds > 0d ? getBytes() / seconds : 0d;
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        long n = getRequests();
+        return n == 0L ? 0d : latencyNanos.sum() / 1e6 / n;
+    }
+
+    @Override
+    public long getMaxLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+    }
+
+    @Override
+    public long[] getLatencyBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = histogram.get(i);
+        return counts;
+    }
+
+    @Override
+    public double getMeanTimeToFirstByteMillis() {
+        long n = ttfbCount.sum();
+        return n == 0L ? 0d : ttfbNanos.sum() / 1e6 / n;
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        statuses.forEach((status, count) -> counts.put(String.valueOf(status), count.sum()));
+        return counts;
+    }
+
+    @Override
+    public long getDelayMillis() {
+        return delayMillis.sum();
+    }
+
+    @Override
+    public String toString() {
+        long p50 = latencyPercentile(0.5d);
+        long p95 = latencyPercentile(0.95d);
+        return String.format("%s: %d requests, %.1f MB at %.1f kB/s, latency mean %.0f ms p50 %s p95 %s max %d ms, " +
+                        "ttfb mean %.0f ms, %d retries, %d timeouts, status %s, delayed %d s",
+                host, getRequests(), getBytes() / 1e6, getBytesPerSecond() / 1e3,
+                getMeanLatencyMillis(), bound(p50), bound(p95), getMaxLatencyMillis(),
+                getMeanTimeToFirstByteMillis(), getRetries(), getTimeouts(), getStatusCounts(),
+                TimeUnit.MILLISECONDS.toSeconds(getDelayMillis()));
+    }
+
+    private static String bound(long millis) {
+        return millis < 0L ? ">" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] : "<=" + millis;
+    }
+
+}
@@ -0,0 +1,48 @@
+package jw.util;
+
+import java.util.Map;
+
+/**
+ * Request statistics of one host, or of all hosts of a scraper.
+ */
+public interface HostMetricsMXBean {
+
+    String getHost();
+
+    long getRequests();
+
+    long getBytes();
+
+    /**
+     * Bytes received per second since the first request.
+     */
+    double getBytesPerSecond();
+
+    double getMeanLatencyMillis();
+
+    long getMaxLatencyMillis();
+
+    /**
+     * Upper bounds in milliseconds of the latency histogram buckets; the last bucket is unbounded.
+     */
+    long[] getLatencyBucketBounds();
+
+    long[] getLatencyHistogram();
+
+    /**
+     * Mean time until response headers arrived, over requests where it is known.
+     */
+    double getMeanTimeToFirstByteMillis();
+
+    long getRetries();
+
+    long getTimeouts();
+
+    Map<String, Long> getStatusCounts();
+
+    /**
+     * Total time spent waiting for the politeness delay.
+     */
+    long getDelayMillis();
+
+}
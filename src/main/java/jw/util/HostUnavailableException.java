@@ -0,0 +1,23 @@
+package jw.util;
+
+import java.io.IOException;
+
+/**
+ * Request refused without being sent because the host's circuit is open.
+ */
+public class HostUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+
+    public HostUnavailableException(String host, Throwable cause) {
+        super(host + " is unavailable", cause);
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+}
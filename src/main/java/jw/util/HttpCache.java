@@ -0,0 +1,166 @@
+package jw.util;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent cache of html responses, bounded by total body size with least
+ * recently used eviction.
+ * <p>
+ * Each entry is a body file named by the hash of its url, plus a {@code .meta}
+ * properties file with the url and expiry time. Freshness follows the response's
+ * Cache-Control: {@code no-store} and {@code no-cache} are not cached,
+ * {@code max-age} sets the lifetime, and the default TTL applies otherwise.
+ * Last access is kept in the body file's modification time, so LRU order
+ * survives restarts.
+ */
+public class HttpCache {
+
+    private static final Pattern MAX_AGE = Pattern.compile("(?:^|[,\\s])(?:s-)?max-age\\s*=\\s*(\\d+)");
+
+    private final File dir;
+    private final long maxBytes;
+    private final long defaultTtl;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0L;
+
+    /**
+     * @param maxBytes   budget for cached bodies
+     * @param defaultTtl lifetime in milliseconds of responses without max-age
+     */
+    public HttpCache(File dir, long maxBytes, long defaultTtl) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.defaultTtl = defaultTtl;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        load();
+    }
+
+    private void load() {
+        File[] bodies = dir.listFiles((d, name) -> !name.endsWith(".meta") && !name.endsWith(".tmp"));
+        if (bodies == null)
+            return;
+        Arrays.sort(bodies, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File body : bodies) {
+            if (!meta(body.getName()).exists()) {
+                body.delete();
+                continue;
+            }
+            entries.put(body.getName(), body.length());
+            totalBytes += body.length();
+        }
+    }
+
+    /**
+     * @return cached html of url, or null if absent or stale
+     */
+    public synchronized String get(URL url) throws IOException {
+        String key = key(url);
+        if (!entries.containsKey(key))
+            return null;
+        Properties props = new Properties();
+        try (Reader reader = Files.newReader(meta(key), StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+        long expires = Long.parseLong(props.getProperty("expires", "0"));
+        if (expires < System.currentTimeMillis() || !url.toString().equals(props.getProperty("url"))) {
+            remove(key);
+            return null;
+        }
+        entries.get(key);
+        File body = new File(dir, key);
+        body.setLastModified(System.currentTimeMillis());
+        return Files.asCharSource(body, StandardCharsets.UTF_8).read();
+    }
+
+    /**
+     * Stores html of url unless its Cache-Control forbids it.
+     */
+    public synchronized void put(URL url, String html, String cacheControl) throws IOException {
+        long ttl = ttl(cacheControl);
+        if (ttl <= 0L)
+            return;
+        String key = key(url);
+        remove(key);
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxBytes)
+            return;
+
+        Properties props = new Properties();
+        props.setProperty("url", url.toString());
+        props.setProperty("expires", String.valueOf(System.currentTimeMillis() + ttl));
+        try (Writer writer = Files.newWriter(meta(key), StandardCharsets.UTF_8)) {
+            props.store(writer, null);
+        }
+        Files.write(bytes, new File(dir, key));
+        entries.put(key, (long) bytes.length);
+        totalBytes += bytes.length;
+        evict();
+    }
+
+    /**
+     * Drops url's entry, e.g. when the page turned out to be an error or advert page.
+     */
+    public synchronized void invalidate(URL url) {
+        remove(key(url));
+    }
+
+    private long ttl(String cacheControl) {
+        if (cacheControl == null)
+            return defaultTtl;
+        String value = cacheControl.toLowerCase();
+        if (value.contains("no-store") || value.contains("no-cache"))
+            return 0L;
+        Matcher m = MAX_AGE.matcher(value);
+        if (m.find())
+            return Long.parseLong(m.group(1)) * 1000L;
+        return defaultTtl;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            it.remove();
+            totalBytes -= entry.getValue();
+            new File(dir, entry.getKey()).delete();
+            meta(entry.getKey()).delete();
+        }
+    }
+
+    private void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null)
+            totalBytes -= size;
+        new File(dir, key).delete();
+        meta(key).delete();
+    }
+
+    private File meta(String key) {
+        return new File(dir, key + ".meta");
+    }
+
+    private static String key(URL url) {
+        return Hashing.sha256().hashString(url.toString(), StandardCharsets.UTF_8).toString();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+}
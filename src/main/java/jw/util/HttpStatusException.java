@@ -0,0 +1,36 @@
+package jw.util;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * Non-2xx response, with the Retry-After and Content-Range headers if the server sent them.
+ */
+public class HttpStatusException extends HttpResponseException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String retryAfter;
+    private final String contentRange;
+
+    public HttpStatusException(int statusCode, String message, String retryAfter) {
+        this(statusCode, message, retryAfter, null);
+    }
+
+    public HttpStatusException(int statusCode, String message, String retryAfter, String contentRange) {
+        super(statusCode, message);
+        this.retryAfter = retryAfter;
+        this.contentRange = contentRange;
+    }
+
+    public String getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * @return Content-Range, which a 416 carries as {@code bytes *}{@code /length}
+     */
+    public String getContentRange() {
+        return contentRange;
+    }
+
+}
@@ -0,0 +1,44 @@
+package jw.util;
+
+import org.apache.http.HttpRequest;
+
+/**
+ * ETag and Last-Modified of a stored response, used to revalidate it with a conditional GET.
+ */
+public class HttpValidators {
+
+    private final String etag;
+    private final String lastModified;
+
+    public HttpValidators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return validators of response, or null if it has none
+     */
+    public static HttpValidators of(BinaryFetcher.Response response) {
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        if (etag == null && lastModified == null)
+            return null;
+        return new HttpValidators(etag, lastModified);
+    }
+
+    public void addTo(HttpRequest request) {
+        if (etag != null)
+            request.setHeader("If-None-Match", etag);
+        if (lastModified != null)
+            request.setHeader("If-Modified-Since", lastModified);
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+}
@@ -0,0 +1,203 @@
+package jw.util;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Existing output found by walking target directories, validating files in parallel so
+ * that downloads can skip complete ones. A file is complete if it matches its
+ * {@code .sha256} sidecar, when there is one, or else ends with the end marker of its
+ * format: PNG, JPEG, GIF, WebP, ZIP (and so CBZ) and PDF. Files of other formats are
+ * unverified and can only be checked against the server's Content-Length. A file with
+ * a {@code .part} beside it is being replaced, so it is treated as missing.
+ */
+public class OutputScan {
+
+    public enum Status {
+        MISSING, UNVERIFIED, COMPLETE
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int ZIP_EOCD_SIZE = 22;
+    private static final int ZIP_MAX_COMMENT = 0xFFFF;
+
+    private final Set<Path> scanned = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Path, Status> outputs = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, Path> byStem = new ConcurrentHashMap<>();
+
+    /**
+     * Walks dir, unless it or a directory containing it was already scanned.
+     */
+    public void scan(File dir) throws IOException {
+        Path root = dir.toPath().toAbsolutePath().normalize();
+        for (Path path = root; path != null; path = path.getParent()) {
+            if (scanned.contains(path))
+                return;
+        }
+        scanned.add(root);
+        if (!dir.isDirectory())
+            return;
+
+        long start = System.currentTimeMillis();
+        List<Path> files;
+        try (Stream<Path> walk = java.nio.file.Files.walk(root)) {
+            files = walk.filter(java.nio.file.Files::isRegularFile)
+                    .filter(p -> !isArtifact(p.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        try {
+            pool.submit(() -> files.parallelStream().forEach(this::add)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        long complete = files.stream().filter(p -> outputs.get(p) == Status.COMPLETE).count();
+        LOGGER.info("Scanned {} in {} ms: {} of {} files complete", dir, System.currentTimeMillis() - start,
+                complete, files.size());
+    }
+
+    private void add(Path path) {
+        Status status = check(path.toFile());
+        outputs.put(path, status);
+        if (status != Status.MISSING)
+            byStem.put(path.resolveSibling(Files.getNameWithoutExtension(path.getFileName().toString())), path);
+    }
+
+    public Status getStatus(File file) {
+        Status status = outputs.get(file.toPath().toAbsolutePath().normalize());
+        return status == null || !file.isFile() ? Status.MISSING : status;
+    }
+
+    /**
+     * @return existing file in dir named filenameNoExt plus any extension, as saved by
+     * {@link DownloadUtil#downloadFileGuessExtension}
+     */
+    public Optional<File> find(File dir, String filenameNoExt) {
+        Path path = byStem.get(dir.toPath().toAbsolutePath().normalize().resolve(filenameNoExt));
+        return Optional.ofNullable(path).map(Path::toFile);
+    }
+
+    /**
+     * Moves a finished part file over its target in one step, so that a scan never
+     * mistakes a partial write for complete output.
+     */
+    public static void commit(File part, File file) throws IOException {
+        try {
+            java.nio.file.Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static boolean isArtifact(String name) {
+        return name.endsWith(".part") || name.endsWith(".meta") || name.endsWith(".tmp") || name.endsWith(".sha256");
+    }
+
+    /**
+     * Validates file without reading more than its head and tail, unless it has a checksum sidecar.
+     */
+    public static Status check(File file) {
+        if (!file.isFile() || new File(file.getPath() + ".part").exists())
+            return Status.MISSING;
+        try {
+            File sidecar = new File(file.getPath() + ".sha256");
+            if (sidecar.isFile()) {
+                String expected = Files.asCharSource(sidecar, StandardCharsets.UTF_8).read().trim().split("\\s+")[0];
+                String actual = Files.asByteSource(file).hash(Hashing.sha256()).toString();
+                return actual.equalsIgnoreCase(expected) ? Status.COMPLETE : Status.MISSING;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                long length = raf.length();
+                if (length == 0L)
+                    return Status.MISSING;
+                byte[] head = read(raf, 0L, (int) Math.min(length, FileFormat.HEADER_SIZE));
+                Optional<FileFormat> format = FileFormat.detect(head, head.length);
+                if (!format.isPresent())
+                    return Status.UNVERIFIED;
+                switch (format.get()) {
+                    case PNG:
+                        return endsWith(raf, 'I', 'E', 'N', 'D', 0xAE, 0x42, 0x60, 0x82);
+                    case JPEG:
+                        return tailContains(raf, 32, 0xFF, 0xD9);
+                    case GIF87A:
+                    case GIF89A:
+                        return endsWith(raf, 0x3B);
+                    case WEBP:
+                        long riffSize = (head[4] & 0xFFL) | (head[5] & 0xFFL) << 8 | (head[6] & 0xFFL) << 16 | (head[7] & 0xFFL) << 24;
+                        return riffSize + 8 <= length ? Status.COMPLETE : Status.MISSING;
+                    case ZIP:
+                        return tailContains(raf, ZIP_EOCD_SIZE + ZIP_MAX_COMMENT, 'P', 'K', 0x05, 0x06);
+                    case PDF:
+                        return tailContains(raf, 1024, '%', '%', 'E', 'O', 'F');
+                    default:
+                        return Status.UNVERIFIED;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to check {}: {}", file, e.toString());
+            return Status.MISSING;
+        }
+    }
+
+    private static Status endsWith(RandomAccessFile raf, int... marker) throws IOException {
+        if (raf.length() < marker.length)
+            return Status.MISSING;
+        byte[] tail = read(raf, raf.length() - marker.length, marker.length);
+        return indexOf(tail, marker) == 0 ? Status.COMPLETE : Status.MISSING;
+    }
+
+    /**
+     * For formats that allow trailing bytes after the end marker.
+     */
+    private static Status tailContains(RandomAccessFile raf, int window, int... marker) throws IOException {
+        int size = (int) Math.min(raf.length(), window);
+        byte[] tail = read(raf, raf.length() - size, size);
+        return indexOf(tail, marker) >= 0 ? Status.COMPLETE : Status.MISSING;
+    }
+
+    private static byte[] read(RandomAccessFile raf, long position, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        raf.seek(position);
+        raf.readFully(bytes);
+        return bytes;
+    }
+
+    private static int indexOf(byte[] bytes, int[] marker) {
+        outer:
+        for (int i = bytes.length - marker.length; i >= 0; i--) {
+            for (int j = 0; j < marker.length; j++) {
+                if ((bytes[i + j] & 0xFF) != marker[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,396 @@
+package jw.util;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only archive of map tiles in a single file, with one fixed-width,
+ * memory-mapped index per zoom level for O(1) lookups by (z, x, y).
+ * <p>
+ * Each record in the pack file is {@code z, x, y, length, bytes}, so the pack
+ * can be scanned sequentially without the index. Index entries are
+ * {@code offset + 1, length}, laid out row by row as {@code x * 2^z + y}; the
+ * index file is sparse, so only regions that hold tiles take up disk space.
+ * <p>
+ * With deduplication enabled, a tile whose body is already stored is written
+ * as a reference record {@code z, x, y, -1, offset} and indexed to the
+ * existing body.
+ * <p>
+ * Records are appended one at a time, so the pack never has gaps. An incomplete
+ * last record, left by a crash, is cut off when the pack is opened. The index is
+ * flushed independently of the pack, so lookups check each entry against the
+ * record it points to and treat a dangling one as missing.
+ */
+public class PackedTileStore implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int RECORD_HEADER = 16;
+    private static final int MAX_ZOOM = 30;
+    private static final int REFERENCE_LENGTH = -1;
+    private static final int ENTRY_SIZE = 12;
+    private static final long ENTRIES_PER_SEGMENT = 1L << 26;
+    private static final long SEGMENT_SIZE = ENTRIES_PER_SEGMENT * ENTRY_SIZE;
+
+    private final File packFile;
+    private final FileChannel pack;
+    private final Map<Integer, TileIndex> indexes = new HashMap<>();
+    private long end;
+    private boolean deduplicate = false;
+    private Map<HashCode, Long> bodies;
+
+    public PackedTileStore(File packFile) throws IOException {
+        this.packFile = packFile;
+        Files.createParentDirs(packFile);
+        pack = FileChannel.open(packFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = recover();
+    }
+
+    /**
+     * @return end of the last complete record, after truncating an incomplete one following it
+     */
+    private long recover() throws IOException {
+        long size = pack.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        long pos = 0;
+        while (pos < size) {
+            long next = pos + RECORD_HEADER <= size ? next(header, pos) : Long.MAX_VALUE;
+            if (next < 0) {
+                LOGGER.warn("Invalid record at {} in {}, later records are only reachable by index", pos, packFile);
+                return size;
+            }
+            if (next > size) {
+                LOGGER.warn("Truncating incomplete record at {} in {}", pos, packFile);
+                pack.truncate(pos);
+                return pos;
+            }
+            pos = next;
+        }
+        return pos;
+    }
+
+    public void put(int z, int x, int y, byte[] data) throws IOException {
+        if (deduplicate) {
+            putDeduplicated(z, x, y, data);
+            return;
+        }
+        long offset = append(record(z, x, y, data));
+        index(z).put(x, y, offset, data.length);
+    }
+
+    private void putDeduplicated(int z, int x, int y, byte[] data) throws IOException {
+        HashCode hash = Hashing.sha256().hashBytes(data);
+        TileIndex index = index(z);
+        long body;
+        // a body is only looked up by other puts once its record is written
+        synchronized (this) {
+            Long existing = bodies().get(hash);
+            if (existing != null && index.offset(x, y) == existing)
+                return;
+            if (existing != null) {
+                ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + 8);
+                buf.putInt(z).putInt(x).putInt(y).putInt(REFERENCE_LENGTH).putLong(existing);
+                buf.flip();
+                append(buf);
+                body = existing;
+            } else {
+                body = append(record(z, x, y, data));
+                bodies.put(hash, body);
+            }
+        }
+        index.put(x, y, body, data.length);
+    }
+
+    private static ByteBuffer record(int z, int x, int y, byte[] data) {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + data.length);
+        buf.putInt(z).putInt(x).putInt(y).putInt(data.length).put(data);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Writes record at the end of the pack under the lock: a record that fails
+     * part way is cut off again, rather than left as a gap before later records
+     * that would throw sequential scans out of alignment.
+     *
+     * @return offset of the record
+     */
+    private synchronized long append(ByteBuffer record) throws IOException {
+        long offset = end;
+        try {
+            writeFully(record, offset);
+        } catch (IOException e) {
+            try {
+                pack.truncate(offset);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        end = offset + record.limit();
+        return offset;
+    }
+
+    /**
+     * Reads the header of the record at pos into header, ready to be read from z on.
+     *
+     * @return position of the next record, or -1 if the header is invalid
+     */
+    private long next(ByteBuffer header, long pos) throws IOException {
+        header.clear();
+        readFully(header, pos);
+        header.flip();
+        int z = header.getInt(0);
+        int length = header.getInt(12);
+        if (z < 0 || z > MAX_ZOOM)
+            return -1;
+        if (length == REFERENCE_LENGTH)
+            return pos + RECORD_HEADER + 8;
+        return length >= 0 ? pos + RECORD_HEADER + length : -1;
+    }
+
+    /**
+     * Hashes of stored bodies, built by scanning the pack on first use.
+     */
+    private Map<HashCode, Long> bodies() throws IOException {
+        if (bodies == null) {
+            bodies = new HashMap<>();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            for (long pos = 0; pos < end; ) {
+                long next = pos + RECORD_HEADER <= end ? next(header, pos) : -1;
+                if (next < 0 || next > end) {
+                    LOGGER.warn("Invalid record at {} in {}, not deduplicating against later records", pos, packFile);
+                    break;
+                }
+                int length = header.getInt(12);
+                if (length != REFERENCE_LENGTH) {
+                    ByteBuffer buf = ByteBuffer.allocate(length);
+                    readFully(buf, pos + RECORD_HEADER);
+                    bodies.putIfAbsent(Hashing.sha256().hashBytes(buf.array()), pos);
+                }
+                pos = next;
+            }
+        }
+        return bodies;
+    }
+
+    /**
+     * @return tile contents, or null if the tile is not stored
+     */
+    public byte[] get(int z, int x, int y) throws IOException {
+        TileIndex index = index(z);
+        long offset = locate(index, x, y);
+        if (offset < 0)
+            return null;
+        ByteBuffer buf = ByteBuffer.allocate(index.length(x, y));
+        readFully(buf, offset + RECORD_HEADER);
+        return buf.array();
+    }
+
+    public boolean contains(int z, int x, int y) throws IOException {
+        return locate(index(z), x, y) >= 0;
+    }
+
+    /**
+     * @return offset of the record holding the tile's body, or -1 if the tile is not
+     * stored or its entry points past the pack or at a record of another length, as
+     * after a crash that kept the index entry but not the record
+     */
+    private long locate(TileIndex index, int x, int y) throws IOException {
+        long offset = index.offset(x, y);
+        if (offset < 0)
+            return -1;
+        int length = index.length(x, y);
+        long limit;
+        synchronized (this) {
+            limit = end;
+        }
+        if (length < 0 || offset + RECORD_HEADER + length > limit)
+            return -1;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        readFully(header, offset);
+        return header.getInt(12) == length ? offset : -1;
+    }
+
+    /**
+     * Writes the current version of every tile at zoom {@code z} as {@code outDir/z/x/y.png},
+     * replacing existing tiles rather than writing through them, as they may be hardlinks
+     * to shared bodies left by a deduplicated download. Each body is written once, and
+     * further tiles with the same body are hardlinked to it where the filesystem allows.
+     *
+     * @return number of tiles written
+     */
+    public int export(int z, File outDir) throws IOException {
+        TileIndex index = index(z);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        Set<Long> exportedTiles = new HashSet<>();
+        Map<Long, File> exportedBodies = new HashMap<>();
+        int count = 0;
+        long limit;
+        synchronized (this) {
+            limit = end;
+        }
+        for (long pos = 0; pos < limit; ) {
+            long next = pos + RECORD_HEADER <= limit ? next(header, pos) : -1;
+            if (next < 0 || next > limit) {
+                LOGGER.warn("Invalid record at {} in {}, stopping export", pos, packFile);
+                break;
+            }
+            int rz = header.getInt();
+            int rx = header.getInt();
+            int ry = header.getInt();
+            int length = header.getInt();
+            long body = pos;
+            if (length == REFERENCE_LENGTH) {
+                ByteBuffer ref = ByteBuffer.allocate(8);
+                readFully(ref, pos + RECORD_HEADER);
+                body = ref.getLong(0);
+            }
+            if (rz == z && index.offset(rx, ry) == body && exportedTiles.add((long) rx << 32 | ry)) {
+                File file = new File(outDir, String.format("%d/%d/%d.png", rz, rx, ry));
+                File part = new File(file.getPath() + ".part");
+                Files.createParentDirs(file);
+                File exported = exportedBodies.get(body);
+                if (exported == null || !link(part, exported)) {
+                    ByteBuffer buf = ByteBuffer.allocate(index.length(rx, ry));
+                    readFully(buf, body + RECORD_HEADER);
+                    Files.write(buf.array(), part);
+                    exportedBodies.put(body, file);
+                }
+                OutputScan.commit(part, file);
+                count++;
+            }
+            pos = next;
+        }
+        return count;
+    }
+
+    /**
+     * @return false if the filesystem refuses the link
+     */
+    private static boolean link(File link, File existing) throws IOException {
+        java.nio.file.Files.deleteIfExists(link.toPath());
+        try {
+            java.nio.file.Files.createLink(link.toPath(), existing.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += pack.write(buf, position);
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = pack.read(buf, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of " + packFile);
+            position += n;
+        }
+    }
+
+    private synchronized TileIndex index(int z) throws IOException {
+        TileIndex index = indexes.get(z);
+        if (index == null) {
+            File indexFile = new File(packFile.getPath() + ".z" + z + ".idx");
+            index = new TileIndex(indexFile, z);
+            indexes.put(z, index);
+        }
+        return index;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (TileIndex index : indexes.values())
+            index.close();
+        pack.close();
+    }
+
+    private static class TileIndex {
+        private final FileChannel channel;
+        private final int zoom;
+        private final MappedByteBuffer[] segments;
+
+        TileIndex(File file, int zoom) throws IOException {
+            this.zoom = zoom;
+            channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long entries = 1L << (2 * zoom);
+            segments = new MappedByteBuffer[(int) ((entries + ENTRIES_PER_SEGMENT - 1) / ENTRIES_PER_SEGMENT)];
+        }
+
+        void put(int x, int y, long offset, int length) throws IOException {
+            long entry = entry(x, y);
+            MappedByteBuffer segment = segment(entry);
+            int pos = (int) (entry % ENTRIES_PER_SEGMENT) * ENTRY_SIZE;
+            synchronized (segment) {
+                segment.putInt(pos + 8, length);
+                segment.putLong(pos, offset + 1);
+            }
+        }
+
+        long offset(int x, int y) throws IOException {
+            long entry = entry(x, y);
+            MappedByteBuffer segment = segment(entry);
+            int pos = (int) (entry % ENTRIES_PER_SEGMENT) * ENTRY_SIZE;
+            synchronized (segment) {
+                return segment.getLong(pos) - 1;
+            }
+        }
+
+        int length(int x, int y) throws IOException {
+            long entry = entry(x, y);
+            MappedByteBuffer segment = segment(entry);
+            int pos = (int) (entry % ENTRIES_PER_SEGMENT) * ENTRY_SIZE;
+            synchronized (segment) {
+                return segment.getInt(pos + 8);
+            }
+        }
+
+        private long entry(int x, int y) {
+            int n = 1 << zoom;
+            if (x < 0 || x >= n || y < 0 || y >= n)
+                throw new IllegalArgumentException("tile index out of range");
+            return (long) x * n + y;
+        }
+
+        private synchronized MappedByteBuffer segment(long entry) throws IOException {
+            int i = (int) (entry / ENTRIES_PER_SEGMENT);
+            if (segments[i] == null) {
+                long entries = Math.min(ENTRIES_PER_SEGMENT, (1L << (2 * zoom)) - i * ENTRIES_PER_SEGMENT);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * SEGMENT_SIZE, entries * ENTRY_SIZE);
+            }
+            return segments[i];
+        }
+
+        void close() throws IOException {
+            for (MappedByteBuffer segment : segments) {
+                if (segment != null)
+                    segment.force();
+            }
+            channel.close();
+        }
+    }
+
+}
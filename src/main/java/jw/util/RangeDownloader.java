@@ -0,0 +1,356 @@
+package jw.util;
+
+import com.google.common.io.Files;
+import org.apache.http.client.HttpResponseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Downloads url into a {@code .part} file that outlives failures: a dropped transfer, or
+ * the next run, resumes with a Range request from the bytes already on disk instead of
+ * starting over. The file only replaces the target once complete.
+ * <p>
+ * With more than one segment, a large file the server serves in ranges is split into
+ * segments fetched in parallel, each written in place with positional writes. The
+ * If-Range validator and each segment's progress are kept in a {@code .part.meta} file,
+ * so a changed remote file restarts from scratch rather than being spliced. A part
+ * without a validator is discarded rather than resumed blind on the next run.
+ */
+class RangeDownloader {
+
+    static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024L;
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long OPEN_END = Long.MAX_VALUE;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+    private static final Pattern UNSATISFIED_RANGE = Pattern.compile("bytes\\s+\\*/(\\d+)");
+
+    private final DownloadUtil downloadUtil;
+    private final URL url;
+    private final File file;
+    private final File part;
+    private final File meta;
+    private volatile String validator;
+    private volatile long length = -1L;
+    private List<Segment> segments = new ArrayList<>();
+    private volatile boolean aborted = false;
+    private boolean discard = false;
+
+    RangeDownloader(DownloadUtil downloadUtil, URL url, File file) {
+        this.downloadUtil = downloadUtil;
+        this.url = url;
+        this.file = file;
+        this.part = new File(file.getPath() + ".part");
+        this.meta = new File(file.getPath() + ".part.meta");
+    }
+
+    /**
+     * @param maxSegments     number of ranges to split a large file into, 1 to fetch it in one stream
+     * @param segmentExecutor runs all segments but the first, which runs on the calling thread
+     */
+    void download(int maxSegments, ExecutorService segmentExecutor) throws IOException {
+        Files.createParentDirs(file);
+        load();
+        try (FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (segments.isEmpty()) {
+                Segment segment = new Segment(0L, out.size(), OPEN_END);
+                segments.add(segment);
+                if (segment.next == 0L && maxSegments > 1)
+                    probe(out, maxSegments, segmentExecutor);
+                else
+                    fetch(out, segment, null);
+            } else {
+                LOGGER.info("Resuming {} in {} segments", url, segments.size());
+                fetchAll(out, segmentExecutor);
+            }
+            out.truncate(segments.size() == 1 ? segments.get(0).next : length);
+        } catch (IOException | RuntimeException e) {
+            if (discard) {
+                part.delete();
+                meta.delete();
+            } else {
+                save();
+            }
+            throw e;
+        }
+        OutputScan.commit(part, file);
+        meta.delete();
+    }
+
+    /**
+     * Opens the whole file as a range, and if the server honours it and the file is large
+     * enough, keeps the open response for the first segment and fetches the rest in parallel.
+     */
+    private void probe(FileChannel out, int maxSegments, ExecutorService segmentExecutor) throws IOException {
+        BinaryFetcher.Response response = open(0L, -1L);
+        Segment first = segments.get(0);
+        try {
+            accept(response, first);
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+        int count = (int) Math.min(maxSegments, length / MIN_SEGMENT_SIZE);
+        if (response.getStatusCode() != 206 || count < 2) {
+            fetch(out, first, response);
+            return;
+        }
+        long size = (length + count - 1) / count;
+        segments.clear();
+        for (long start = 0L; start < length; start += size)
+            segments.add(new Segment(start, start, Math.min(start + size, length) - 1));
+        save();
+        LOGGER.info("Downloading {} in {} segments", url, segments.size());
+        fetchAll(out, segmentExecutor, response);
+    }
+
+    private void fetchAll(FileChannel out, ExecutorService segmentExecutor) throws IOException {
+        fetchAll(out, segmentExecutor, null);
+    }
+
+    private void fetchAll(FileChannel out, ExecutorService segmentExecutor, BinaryFetcher.Response firstResponse) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Segment segment : segments.subList(1, segments.size())) {
+            futures.add(segmentExecutor.submit(() -> {
+                fetch(out, segment, null);
+                return null;
+            }));
+        }
+        Exception failure = null;
+        try {
+            fetch(out, segments.get(0), firstResponse);
+        } catch (IOException | RuntimeException e) {
+            aborted = true;
+            failure = e;
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                aborted = true;
+                if (failure == null)
+                    failure = new IOException(e);
+            } catch (ExecutionException e) {
+                aborted = true;
+                if (failure == null)
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw (RuntimeException) failure;
+    }
+
+    /**
+     * Fetches the rest of segment, resuming after a dropped transfer for as long as each
+     * attempt makes progress, up to the retry limit.
+     *
+     * @param response already open response positioned at the segment's next byte, or null
+     */
+    private void fetch(FileChannel out, Segment segment, BinaryFetcher.Response response) throws IOException {
+        int resumes = 0;
+        while (!segment.isDone()) {
+            long from = segment.next;
+            try {
+                if (response == null)
+                    response = open(from, segment.end == OPEN_END ? -1L : segment.end);
+                try (BinaryFetcher.Response r = response) {
+                    response = null;
+                    accept(r, segment);
+                    transfer(r, out, segment);
+                }
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() != 416 || segments.size() > 1)
+                    throw e;
+                if (from == 0L) {
+                    length = 0L;
+                    segment.end = -1L;
+                } else if (from == unsatisfiedLength(e)) {
+                    LOGGER.info("{} already complete", url);
+                    length = from;
+                    segment.end = from - 1;
+                } else {
+                    LOGGER.info("Restarting {} from byte 0", url);
+                    segment.next = 0L;
+                    validator = null;
+                }
+            } catch (IOException e) {
+                if (aborted || segment.next <= from || resumes++ >= downloadUtil.getNumRetries())
+                    throw e;
+                LOGGER.info("Resuming {} from byte {}", url, segment.next);
+            }
+        }
+    }
+
+    /**
+     * @return length from the {@code bytes *}{@code /length} Content-Range of a 416, or -1
+     */
+    private static long unsatisfiedLength(HttpResponseException e) {
+        String contentRange = e instanceof HttpStatusException ? ((HttpStatusException) e).getContentRange() : null;
+        Matcher m = contentRange == null ? null : UNSATISFIED_RANGE.matcher(contentRange.trim());
+        return m != null && m.matches() ? Long.parseLong(m.group(1)) : -1L;
+    }
+
+    private BinaryFetcher.Response open(long from, long to) throws IOException {
+        String ifRange = from > 0L ? validator : null;
+        return downloadUtil.execute(url, () -> downloadUtil.getBinaryFetcher().openRange(url, from, to, ifRange));
+    }
+
+    /**
+     * Checks that response continues segment, restarting a single stream from byte 0 when
+     * the server sends the whole file instead, and picks up the length and validator.
+     */
+    private void accept(BinaryFetcher.Response response, Segment segment) throws IOException {
+        String contentRange = response.getHeader("Content-Range");
+        if (response.getStatusCode() == 206) {
+            Matcher m = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+            if (m == null || !m.matches() || Long.parseLong(m.group(1)) != segment.next)
+                throw new IOException(url + ": unexpected Content-Range " + contentRange);
+            if (!m.group(3).equals("*"))
+                length = Long.parseLong(m.group(3));
+        } else {
+            if (segments.size() > 1) {
+                discard = true;
+                throw new IOException(url + ": changed or no longer served in ranges, restarting on next attempt");
+            }
+            if (segment.next > 0L)
+                LOGGER.info("Restarting {} from byte 0", url);
+            segment.next = 0L;
+            String contentLength = response.getHeader("Content-Length");
+            length = contentLength == null ? -1L : Long.parseLong(contentLength);
+        }
+        if (validator == null)
+            validator = validator(response);
+    }
+
+    /**
+     * Strong ETag, else Last-Modified, as accepted by If-Range.
+     */
+    private static String validator(BinaryFetcher.Response response) {
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/"))
+            return etag;
+        return response.getHeader("Last-Modified");
+    }
+
+    private void transfer(BinaryFetcher.Response response, FileChannel out, Segment segment) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        try (ReadableByteChannel in = Channels.newChannel(response.getContent())) {
+            while (!segment.isDone()) {
+                if (aborted)
+                    throw new IOException("aborted");
+                buf.clear();
+                if (segment.end != OPEN_END)
+                    buf.limit((int) Math.min(buf.capacity(), segment.end - segment.next + 1));
+                if (in.read(buf) < 0)
+                    break;
+                buf.flip();
+                while (buf.hasRemaining())
+                    segment.next += out.write(buf, segment.next);
+            }
+        }
+        if (segment.end == OPEN_END) {
+            if (length >= 0L && segment.next < length)
+                throw new IOException(url + ": connection closed at byte " + segment.next + " of " + length);
+            segment.end = segment.next - 1;
+        } else if (!segment.isDone()) {
+            throw new IOException(url + ": connection closed at byte " + segment.next + " of segment ending " + segment.end);
+        }
+    }
+
+    /**
+     * Picks up where an earlier attempt left off, discarding a part that cannot be
+     * resumed safely: one without meta, for another url, or without a validator to
+     * detect a changed remote file.
+     */
+    private void load() throws IOException {
+        if (!part.exists()) {
+            meta.delete();
+            return;
+        }
+        Properties props = new Properties();
+        if (meta.exists()) {
+            try (Reader reader = Files.newReader(meta, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            }
+        }
+        if (!url.toString().equals(props.getProperty("url")) || props.getProperty("validator") == null) {
+            LOGGER.info("Discarding {}, cannot be resumed safely", part);
+            part.delete();
+            meta.delete();
+            return;
+        }
+        validator = props.getProperty("validator");
+        length = Long.parseLong(props.getProperty("length", "-1"));
+        String value = props.getProperty("segments", "");
+        for (String range : value.split(",")) {
+            String[] split = range.split("-");
+            if (split.length == 3)
+                segments.add(new Segment(Long.parseLong(split[0]), Long.parseLong(split[1]), Long.parseLong(split[2])));
+        }
+    }
+
+    /**
+     * Records what a later attempt needs to resume; a single stream resumes from the part's size.
+     */
+    private void save() {
+        if (!part.exists())
+            return;
+        Properties props = new Properties();
+        props.setProperty("url", url.toString());
+        if (validator != null)
+            props.setProperty("validator", validator);
+        props.setProperty("length", String.valueOf(length));
+        if (segments.size() > 1) {
+            props.setProperty("segments", segments.stream()
+                    .map(s -> s.start + "-" + s.next + "-" + s.end)
+                    .collect(Collectors.joining(",")));
+        }
+        try (Writer writer = Files.newWriter(meta, StandardCharsets.UTF_8)) {
+            props.store(writer, null);
+        } catch (IOException e) {
+            LOGGER.warn(e);
+        }
+    }
+
+    private static class Segment {
+        private final long start;
+        private volatile long next;
+        private volatile long end;
+
+        Segment(long start, long next, long end) {
+            this.start = start;
+            this.next = next;
+            this.end = end;
+        }
+
+        boolean isDone() {
+            return next > end;
+        }
+    }
+
+}
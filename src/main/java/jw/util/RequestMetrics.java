@@ -0,0 +1,153 @@
+package jw.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-host request statistics of one scraper, optionally published as
+ * {@code jw.scrapers:type=Requests,scraper=<name>,host=<host>} MXBeans, with
+ * {@code host=total} for the totals, and logged periodically and on close.
+ */
+public class RequestMetrics implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String TOTAL = "total";
+
+    private final ConcurrentMap<String, HostMetrics> hosts = new ConcurrentHashMap<>();
+    private final HostMetrics total = new HostMetrics(TOTAL);
+    private final List<ObjectName> registered = new ArrayList<>();
+    private String scraper;
+    private ScheduledExecutorService logger;
+
+    public HostMetrics getHost(String host) {
+        HostMetrics metrics = hosts.get(host);
+        if (metrics != null)
+            return metrics;
+        return hosts.computeIfAbsent(host, h -> {
+            HostMetrics created = new HostMetrics(h);
+            register(created);
+            return created;
+        });
+    }
+
+    public HostMetrics getTotal() {
+        return total;
+    }
+
+    /**
+     * @param ttfbNanos time to first byte, or negative if unknown
+     */
+    public void recordResponse(String host, long ttfbNanos, long latencyNanos, long bytes) {
+        getHost(host).recordResponse(ttfbNanos, latencyNanos, bytes);
+        total.recordResponse(ttfbNanos, latencyNanos, bytes);
+    }
+
+    public void recordStatus(String host, int status) {
+        getHost(host).recordStatus(status);
+        total.recordStatus(status);
+    }
+
+    public void recordRetry(String host) {
+        getHost(host).recordRetry();
+        total.recordRetry();
+    }
+
+    public void recordTimeout(String host) {
+        getHost(host).recordTimeout();
+        total.recordTimeout();
+    }
+
+    public void recordDelay(String host, long millis) {
+        if (millis <= 0L)
+            return;
+        getHost(host).recordDelay(millis);
+        total.recordDelay(millis);
+    }
+
+    /**
+     * Publishes the totals and every host, current and future, under the scraper name.
+     */
+    public synchronized void register(String scraper) {
+        if (this.scraper != null)
+            throw new IllegalStateException("already registered as " + this.scraper);
+        this.scraper = scraper;
+        register(total);
+        hosts.values().forEach(this::register);
+    }
+
+    private synchronized void register(HostMetrics metrics) {
+        if (scraper == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            Hashtable<String, String> properties = new Hashtable<>();
+            properties.put("type", "Requests");
+            properties.put("scraper", ObjectName.quote(scraper));
+            properties.put("host", ObjectName.quote(metrics.getHost()));
+            ObjectName name = new ObjectName("jw.scrapers", properties);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(metrics, name);
+            registered.add(name);
+        } catch (JMException e) {
+            LOGGER.warn(e);
+        }
+    }
+
+    /**
+     * Logs a summary every {@code seconds}, 0 to disable. Registered metrics are
+     * also summarized on close.
+     */
+    public synchronized void startLogging(long seconds) {
+        if (seconds <= 0L || logger != null)
+            return;
+        logger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        logger.scheduleAtFixedRate(this::logSummary, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    public void logSummary() {
+        if (total.getRequests() == 0L && total.getTimeouts() == 0L)
+            return;
+        LOGGER.info("{}", total);
+        if (hosts.size() > 1)
+            hosts.values().forEach(host -> LOGGER.info("  {}", host));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+        if (scraper != null)
+            logSummary();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                LOGGER.debug(e);
+            }
+        }
+        registered.clear();
+        scraper = null;
+    }
+
+}
@@ -0,0 +1,126 @@
+package jw.util;
+
+import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.net.SocketTimeoutException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Capped exponential backoff with jitter, and classification of failures
+ * worth retrying: timeouts, 408, 429 and 5xx responses.
+ */
+public class RetryPolicy {
+
+    private int maxRetries;
+    private long baseDelay;
+    private long maxDelay;
+    private long maxRetryAfter = 10 * 60 * 1000L;
+
+    /**
+     * @param baseDelay backoff in milliseconds before the first retry, doubled on each further retry
+     * @param maxDelay  cap on the backoff in milliseconds
+     */
+    public RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Milliseconds to wait before retry number {@code attempt + 1}, drawn uniformly
+     * from the upper half of the capped exponential delay.
+     */
+    public long backoff(int attempt) {
+        long cap = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+        if (cap <= 0L)
+            return 0L;
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    public static boolean isRetriable(Exception e) {
+        if (e instanceof ConnectTimeoutException || e instanceof SocketTimeoutException)
+            return true;
+        int status = getStatusCode(e);
+        return status == 408 || status == 429 || status >= 500;
+    }
+
+    /**
+     * @return status code of a failed response, or -1
+     */
+    public static int getStatusCode(Exception e) {
+        if (e instanceof FailingHttpStatusCodeException)
+            return ((FailingHttpStatusCodeException) e).getStatusCode();
+        if (e instanceof HttpResponseException)
+            return ((HttpResponseException) e).getStatusCode();
+        return -1;
+    }
+
+    /**
+     * @return milliseconds the server asked to wait through Retry-After, capped, or 0
+     */
+    public long getRetryAfter(Exception e) {
+        String value = null;
+        if (e instanceof FailingHttpStatusCodeException)
+            value = ((FailingHttpStatusCodeException) e).getResponse().getResponseHeaderValue("Retry-After");
+        else if (e instanceof HttpStatusException)
+            value = ((HttpStatusException) e).getRetryAfter();
+        return Math.min(parseRetryAfter(value), maxRetryAfter);
+    }
+
+    /**
+     * Parses delta-seconds or an HTTP date.
+     *
+     * @return milliseconds to wait, or 0 if absent or unparseable
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty())
+            return 0L;
+        value = value.trim();
+        try {
+            return Math.max(0L, Long.parseLong(value) * 1000L);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? 0L : Math.max(0L, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    public void setBaseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public long getMaxRetryAfter() {
+        return maxRetryAfter;
+    }
+
+    /**
+     * Cap on waits requested by Retry-After, so a misbehaving server cannot stall a run.
+     */
+    public void setMaxRetryAfter(long maxRetryAfter) {
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+}
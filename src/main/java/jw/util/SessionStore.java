@@ -0,0 +1,113 @@
+package jw.util;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Persists the cookies and user agent of a {@link WebClient} session, so a solved
+ * challenge (e.g. Cloudflare's {@code cf_clearance}) can be reused by later runs
+ * until the required cookie expires. The file holds credentials, so it is only
+ * readable by its owner where the filesystem supports POSIX permissions.
+ */
+public class SessionStore {
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final File file;
+    private final String requiredCookie;
+
+    public SessionStore(File file, String requiredCookie) {
+        this.file = file;
+        this.requiredCookie = requiredCookie;
+    }
+
+    /**
+     * Loads the saved session into webClient if its required cookie is still valid.
+     *
+     * @return true if a valid session was restored
+     */
+    public boolean restore(WebClient webClient) throws IOException {
+        if (!file.exists())
+            return false;
+        Properties props = new Properties();
+        try (Reader reader = Files.newReader(file, StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+        int count = Integer.parseInt(props.getProperty("cookies", "0"));
+        Date now = new Date();
+        boolean valid = false;
+        for (int i = 0; i < count; i++) {
+            Cookie cookie = readCookie(props, "cookie." + i + ".");
+            if (cookie.getExpires() != null && cookie.getExpires().before(now))
+                continue;
+            if (cookie.getName().equals(requiredCookie))
+                valid = true;
+        }
+        if (!valid)
+            return false;
+        for (int i = 0; i < count; i++) {
+            Cookie cookie = readCookie(props, "cookie." + i + ".");
+            if (cookie.getExpires() == null || cookie.getExpires().after(now))
+                webClient.getCookieManager().addCookie(cookie);
+        }
+        String userAgent = props.getProperty("userAgent");
+        if (userAgent != null && !userAgent.equals(webClient.getBrowserVersion().getUserAgent()))
+            webClient.addRequestHeader("User-Agent", userAgent);
+        return true;
+    }
+
+    public void save(WebClient webClient) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("userAgent", webClient.getBrowserVersion().getUserAgent());
+        int i = 0;
+        for (Cookie cookie : webClient.getCookieManager().getCookies()) {
+            String prefix = "cookie." + i++ + ".";
+            props.setProperty(prefix + "name", cookie.getName());
+            props.setProperty(prefix + "value", cookie.getValue());
+            props.setProperty(prefix + "domain", cookie.getDomain());
+            props.setProperty(prefix + "path", cookie.getPath() == null ? "/" : cookie.getPath());
+            if (cookie.getExpires() != null)
+                props.setProperty(prefix + "expires", String.valueOf(cookie.getExpires().getTime()));
+            props.setProperty(prefix + "secure", String.valueOf(cookie.isSecure()));
+            props.setProperty(prefix + "httpOnly", String.valueOf(cookie.isHttpOnly()));
+        }
+        props.setProperty("cookies", String.valueOf(i));
+        Files.createParentDirs(file);
+        Path path = file.toPath();
+        if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            if (file.exists())
+                java.nio.file.Files.setPosixFilePermissions(path, OWNER_ONLY);
+            else
+                java.nio.file.Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        }
+        try (Writer writer = Files.newWriter(file, StandardCharsets.UTF_8)) {
+            props.store(writer, null);
+        }
+    }
+
+    private static Cookie readCookie(Properties props, String prefix) {
+        String expires = props.getProperty(prefix + "expires");
+        return new Cookie(
+                props.getProperty(prefix + "domain"),
+                props.getProperty(prefix + "name"),
+                props.getProperty(prefix + "value"),
+                props.getProperty(prefix + "path"),
+                expires == null ? null : new Date(Long.parseLong(expires)),
+                Boolean.parseBoolean(props.getProperty(prefix + "secure")),
+                Boolean.parseBoolean(props.getProperty(prefix + "httpOnly")));
+    }
+
+}
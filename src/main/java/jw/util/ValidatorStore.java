@@ -0,0 +1,88 @@
+package jw.util;
+
+import com.google.common.io.FileWriteMode;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only log of {@link HttpValidators} per key, one {@code key\tetag\tlastModified}
+ * line per entry. The last line for a key wins. On open the log is replayed and rewritten
+ * with one line per key, so it stays proportional to the number of keys across runs.
+ */
+public class ValidatorStore implements AutoCloseable {
+
+    private final Map<String, HttpValidators> validators = new ConcurrentHashMap<>();
+    private final Writer writer;
+
+    private final File file;
+
+    public ValidatorStore(File file) throws IOException {
+        this.file = file;
+        Files.createParentDirs(file);
+        if (file.exists()) {
+            try (BufferedReader reader = Files.newReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] split = line.split("\t", -1);
+                    if (split.length != 3)
+                        continue;
+                    validators.put(split[0], new HttpValidators(emptyToNull(split[1]), emptyToNull(split[2])));
+                }
+            }
+            compact();
+        }
+        writer = Files.asCharSink(file, StandardCharsets.UTF_8, FileWriteMode.APPEND)
+                .openBufferedStream();
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer tmpWriter = Files.newWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, HttpValidators> entry : validators.entrySet())
+                tmpWriter.write(line(entry.getKey(), entry.getValue()));
+        }
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public HttpValidators get(String key) {
+        return validators.get(key);
+    }
+
+    public void put(String key, HttpValidators value) throws IOException {
+        if (value == null)
+            return;
+        validators.put(key, value);
+        synchronized (writer) {
+            writer.write(line(key, value));
+        }
+    }
+
+    private static String line(String key, HttpValidators value) {
+        return key + "\t" + nullToEmpty(value.getEtag()) + "\t" + nullToEmpty(value.getLastModified()) + "\n";
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+
+}
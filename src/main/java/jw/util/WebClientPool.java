@@ -0,0 +1,140 @@
+package jw.util;
+
+import com.gargoylesoftware.htmlunit.CookieManager;
+import com.gargoylesoftware.htmlunit.WebClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of {@link WebClient}s, which are not thread-safe and expensive to build.
+ * A client is used by one thread between {@link #checkout()} and {@link #release(WebClient)}.
+ * <p>
+ * Clients either share one {@link CookieManager} or each keep their own. New clients
+ * are warmed by loading {@code about:blank}, and clients idle for longer than the
+ * idle timeout are closed the next time the pool is used.
+ */
+public class WebClientPool implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final Supplier<WebClient> factory;
+    private final CookieManager sharedCookieManager;
+    private final long idleTimeout;
+    private final Semaphore available;
+    private final Deque<IdleClient> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    /**
+     * @param sharedCookieManager cookies shared by every client, or null to isolate each client
+     * @param idleTimeout         milliseconds after which an idle client is closed
+     */
+    public WebClientPool(Supplier<WebClient> factory, int maxSize, CookieManager sharedCookieManager, long idleTimeout) {
+        this.factory = factory;
+        this.sharedCookieManager = sharedCookieManager;
+        this.idleTimeout = idleTimeout;
+        this.available = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Creates and warms clients until at least {@code count} are idle, within the pool bound.
+     */
+    public void prewarm(int count) {
+        List<WebClient> clients = new ArrayList<>();
+        try {
+            while (idleCount() + clients.size() < count && available.tryAcquire())
+                clients.add(newClient());
+        } finally {
+            clients.forEach(this::release);
+        }
+    }
+
+    /**
+     * Blocks until a client is available.
+     */
+    public WebClient checkout() throws InterruptedException {
+        available.acquire();
+        synchronized (this) {
+            if (closed) {
+                available.release();
+                throw new IllegalStateException("pool closed");
+            }
+            evictIdle();
+            IdleClient client = idle.pollLast();
+            if (client != null)
+                return client.webClient;
+        }
+        try {
+            return newClient();
+        } catch (RuntimeException e) {
+            available.release();
+            throw e;
+        }
+    }
+
+    public void release(WebClient webClient) {
+        synchronized (this) {
+            if (closed) {
+                webClient.close();
+            } else {
+                idle.addLast(new IdleClient(webClient, System.currentTimeMillis()));
+                evictIdle();
+            }
+        }
+        available.release();
+    }
+
+    private WebClient newClient() {
+        WebClient webClient = factory.get();
+        if (sharedCookieManager != null)
+            webClient.setCookieManager(sharedCookieManager);
+        try {
+            webClient.getPage(WebClient.URL_ABOUT_BLANK);
+        } catch (IOException e) {
+            LOGGER.warn(e);
+        }
+        return webClient;
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<IdleClient> it = idle.iterator();
+        while (it.hasNext()) {
+            IdleClient client = it.next();
+            if (now - client.since < idleTimeout)
+                break;
+            it.remove();
+            client.webClient.close();
+        }
+    }
+
+    public synchronized int idleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        idle.forEach(client -> client.webClient.close());
+        idle.clear();
+    }
+
+    private static class IdleClient {
+        private final WebClient webClient;
+        private final long since;
+
+        IdleClient(WebClient webClient, long since) {
+            this.webClient = webClient;
+            this.since = since;
+        }
+    }
+
+}